@@ -0,0 +1,270 @@
+/*
+ * Copyright 2013 Patrick Kelchner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.cortexx.otp.async;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import net.cortexx.otp.HmacBasedOneTimePassword;
+import net.cortexx.otp.OneTimePasswordTable;
+import net.cortexx.otp.TimeBasedOneTimePassword;
+
+/**
+ * Generates and validates time-based passwords off the calling thread, so that threads of an
+ * event loop never block on the locks of an HMAC engine.
+ * This type is thread-safe.
+ * <p>
+ * Requests are queued and drained by at most <code>parallelism</code> tasks of the executor at a
+ * time. Requests arriving while a task drains the queue join its batch instead of scheduling a
+ * task of their own, so bursts cost few task switches. A task hands over to a fresh one after
+ * {@value #BATCH} requests, giving other tasks of the executor a chance to run.
+ * <p>
+ * The returned futures are completed on the draining thread. Dependent stages that may block or
+ * take long should therefore be attached with the <code>*Async</code> methods of
+ * {@link CompletableFuture}.
+ */
+public final class AsyncValidator {
+	/** The number of requests a task drains before handing over to a fresh one. */
+	public static final int BATCH = 256;
+
+	private final TimeBasedOneTimePassword totp;
+	private final Executor executor;
+	private final ExecutorService ownExecutor;
+	private final int parallelism;
+
+	private final ConcurrentLinkedQueue<Request<?>> queue = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger drainers = new AtomicInteger();
+	private final Runnable drain = this::drain;
+
+	/**
+	 * Creates a validator running on virtual threads where available (Java 21 and later), or on
+	 * daemon platform threads otherwise, with one task per processor.
+	 * 
+	 * @param totp
+	 *        the time-based parameters
+	 */
+	public AsyncValidator(final TimeBasedOneTimePassword totp) {
+		this(totp, defaultExecutor(), Runtime.getRuntime().availableProcessors(), true);
+	}
+
+	/**
+	 * @param totp
+	 *        the time-based parameters
+	 * @param executor
+	 *        runs the tasks draining the queue
+	 * @param parallelism
+	 *        the maximum number of tasks draining the queue at the same time
+	 */
+	public AsyncValidator(final TimeBasedOneTimePassword totp, final Executor executor, final int parallelism) {
+		this(totp, executor, parallelism, false);
+	}
+
+	private AsyncValidator(final TimeBasedOneTimePassword totp, final Executor executor,
+			final int parallelism, final boolean owned) {
+
+		if (totp == null) {
+			throw new NullPointerException("totp");
+		}
+		if (executor == null) {
+			throw new NullPointerException("executor");
+		}
+		if (parallelism <= 0) {
+			throw new IllegalArgumentException("'parallelism' must be positive");
+		}
+
+		this.totp = totp;
+		this.executor = executor;
+		this.ownExecutor = owned ? (ExecutorService) executor : null;
+		this.parallelism = parallelism;
+	}
+
+	private static ExecutorService defaultExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (final ReflectiveOperationException e) {
+			// before Java 21
+			final AtomicInteger threads = new AtomicInteger();
+			return Executors.newCachedThreadPool(runnable -> {
+				final Thread thread = new Thread(runnable, "otp-async-" + threads.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
+	/**
+	 * Validates asynchronously that the given password is the currently valid password.
+	 * 
+	 * @see TimeBasedOneTimePassword#validate(int, HmacBasedOneTimePassword)
+	 */
+	public CompletableFuture<Boolean> validate(final int password, final HmacBasedOneTimePassword otp) {
+		if (otp == null) {
+			throw new NullPointerException("otp");
+		}
+		return submit(() -> totp.validate(password, otp));
+	}
+
+	/**
+	 * Validates asynchronously that the given digits are the currently valid password.
+	 * 
+	 * @see TimeBasedOneTimePassword#validate(CharSequence, HmacBasedOneTimePassword)
+	 */
+	public CompletableFuture<Boolean> validate(final CharSequence password, final HmacBasedOneTimePassword otp) {
+		if (password == null) {
+			throw new NullPointerException("password");
+		}
+		if (otp == null) {
+			throw new NullPointerException("otp");
+		}
+		return submit(() -> totp.validate(password, otp));
+	}
+
+	/**
+	 * Validates asynchronously that the given password is the currently valid password of an
+	 * account in the given table.
+	 * 
+	 * @see TimeBasedOneTimePassword#validate(int, OneTimePasswordTable, int)
+	 */
+	public CompletableFuture<Boolean> validate(final int password, final OneTimePasswordTable table,
+			final int account) {
+
+		if (table == null) {
+			throw new NullPointerException("table");
+		}
+		return submit(() -> totp.validate(password, table, account));
+	}
+
+	/**
+	 * Finds asynchronously the timeslot of the validation window in which the given password is
+	 * valid.
+	 * 
+	 * @return a future of the offset of the matching timeslot from the current one, or
+	 *         {@link TimeBasedOneTimePassword#NO_MATCH}
+	 * @see TimeBasedOneTimePassword#match(int, HmacBasedOneTimePassword)
+	 */
+	public CompletableFuture<Integer> match(final int password, final HmacBasedOneTimePassword otp) {
+		if (otp == null) {
+			throw new NullPointerException("otp");
+		}
+		return submit(() -> totp.match(password, otp));
+	}
+
+	/**
+	 * Generates asynchronously the currently valid password.
+	 * 
+	 * @see TimeBasedOneTimePassword#generatePassword(HmacBasedOneTimePassword)
+	 */
+	public CompletableFuture<Integer> generatePassword(final HmacBasedOneTimePassword otp) {
+		if (otp == null) {
+			throw new NullPointerException("otp");
+		}
+		return submit(() -> totp.generatePassword(otp));
+	}
+
+	/**
+	 * Shuts down the executor if it was created by this validator. Requests queued afterwards
+	 * fail with a {@link RejectedExecutionException}.
+	 */
+	public void shutdown() {
+		if (ownExecutor != null) {
+			ownExecutor.shutdown();
+		}
+	}
+
+	private <T> CompletableFuture<T> submit(final Supplier<T> task) {
+		final Request<T> request = new Request<>(task);
+		queue.add(request);
+
+		if (acquire()) {
+			execute();
+		}
+
+		return request.future;
+	}
+
+	private boolean acquire() {
+		for (int count; (count = drainers.get()) < parallelism;) {
+			if (drainers.compareAndSet(count, count + 1)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Runs a task holding an acquired slot.
+	 */
+	private void execute() {
+		try {
+			executor.execute(drain);
+		} catch (final RejectedExecutionException e) {
+			drainers.decrementAndGet();
+
+			for (Request<?> request; (request = queue.poll()) != null;) {
+				request.future.completeExceptionally(e);
+			}
+		}
+	}
+
+	private void drain() {
+		int drained = 0;
+
+		while (true) {
+			final Request<?> request = queue.poll();
+
+			if (request == null) {
+				drainers.decrementAndGet();
+
+				// a request may have been queued between the poll and the decrement
+				if (queue.isEmpty() || !acquire()) {
+					return;
+				}
+				continue;
+			}
+
+			request.run();
+
+			if (++drained == BATCH) {
+				// keep the slot, but let other tasks of the executor run
+				execute();
+				return;
+			}
+		}
+	}
+
+	private static final class Request<T> {
+		final CompletableFuture<T> future = new CompletableFuture<>();
+		final Supplier<T> task;
+
+		Request(final Supplier<T> task) {
+			this.task = task;
+		}
+
+		void run() {
+			try {
+				future.complete(task.get());
+			} catch (final Throwable e) {
+				future.completeExceptionally(e);
+			}
+		}
+	}
+}
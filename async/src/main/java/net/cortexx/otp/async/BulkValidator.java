@@ -0,0 +1,217 @@
+/*
+ * Copyright 2013 Patrick Kelchner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.cortexx.otp.async;
+
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import net.cortexx.otp.OneTimePasswordTable;
+import net.cortexx.otp.TimeBasedOneTimePassword;
+
+/**
+ * Validates large numbers of (account, password, time) tuples in parallel, e.g. when replaying
+ * audit logs or synchronizing offline tokens.
+ * This type is thread-safe.
+ * <p>
+ * The tuples are given as parallel arrays and validated at their own time, not the current one.
+ * The index range is split recursively on a {@link ForkJoinPool} down to slices of
+ * {@value #SLICE} tuples, a multiple of 64, so each slice reads contiguous memory and writes
+ * whole words of the result. Nothing is allocated per tuple.
+ * <p>
+ * A tuple with a negative time or an account that <code>table</code> does not hold is reported
+ * as invalid; the other tuples of the batch are validated regardless.
+ */
+public final class BulkValidator {
+	/** The number of tuples validated by one task. */
+	public static final int SLICE = 1024;
+
+	private final TimeBasedOneTimePassword totp;
+	private final ForkJoinPool pool;
+
+	/**
+	 * Creates a validator running on the common pool.
+	 * 
+	 * @param totp
+	 *        the time-based parameters
+	 */
+	public BulkValidator(final TimeBasedOneTimePassword totp) {
+		this(totp, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * @param totp
+	 *        the time-based parameters
+	 * @param pool
+	 *        runs the validation
+	 */
+	public BulkValidator(final TimeBasedOneTimePassword totp, final ForkJoinPool pool) {
+		if (totp == null) {
+			throw new NullPointerException("totp");
+		}
+		if (pool == null) {
+			throw new NullPointerException("pool");
+		}
+
+		this.totp = totp;
+		this.pool = pool;
+	}
+
+	/**
+	 * Validates the given tuples.
+	 * 
+	 * @param table
+	 *        the table holding the accounts
+	 * @param accounts
+	 *        the index of the account of each tuple in <code>table</code>
+	 * @param passwords
+	 *        the password of each tuple
+	 * @param timesMillis
+	 *        the time of each tuple in milliseconds since the epoch
+	 * @param results
+	 *        receives whether the password of each tuple was valid at its time
+	 */
+	public void validate(final OneTimePasswordTable table, final int[] accounts, final int[] passwords,
+			final long[] timesMillis, final boolean[] results) {
+
+		if (results == null) {
+			throw new NullPointerException("results");
+		}
+		final int length = check(table, accounts, passwords, timesMillis);
+		if (results.length < length) {
+			throw new IllegalArgumentException("'results' must hold as many values as 'accounts'");
+		}
+
+		pool.invoke(new Validation(table, accounts, passwords, timesMillis, results, null, 0, length));
+	}
+
+	/**
+	 * Validates the given tuples.
+	 * 
+	 * @param table
+	 *        the table holding the accounts
+	 * @param accounts
+	 *        the index of the account of each tuple in <code>table</code>
+	 * @param passwords
+	 *        the password of each tuple
+	 * @param timesMillis
+	 *        the time of each tuple in milliseconds since the epoch
+	 * @return has bit <code>i</code> set if the password of tuple <code>i</code> was valid at its
+	 *         time
+	 */
+	public BitSet validate(final OneTimePasswordTable table, final int[] accounts, final int[] passwords,
+			final long[] timesMillis) {
+
+		final int length = check(table, accounts, passwords, timesMillis);
+		final long[] words = new long[(length + 63) >>> 6];
+
+		pool.invoke(new Validation(table, accounts, passwords, timesMillis, null, words, 0, length));
+
+		return BitSet.valueOf(words);
+	}
+
+	private static int check(final OneTimePasswordTable table, final int[] accounts, final int[] passwords,
+			final long[] timesMillis) {
+
+		if (table == null) {
+			throw new NullPointerException("table");
+		}
+		if (accounts == null) {
+			throw new NullPointerException("accounts");
+		}
+		if (passwords == null) {
+			throw new NullPointerException("passwords");
+		}
+		if (timesMillis == null) {
+			throw new NullPointerException("timesMillis");
+		}
+		if (passwords.length != accounts.length || timesMillis.length != accounts.length) {
+			throw new IllegalArgumentException("'accounts', 'passwords' and 'timesMillis' must be of the same length");
+		}
+
+		return accounts.length;
+	}
+
+	private final class Validation extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final OneTimePasswordTable table;
+		private final int[] accounts;
+		private final int[] passwords;
+		private final long[] timesMillis;
+		private final boolean[] results;
+		private final long[] words;
+		private final int from;
+		private final int to;
+
+		Validation(final OneTimePasswordTable table, final int[] accounts, final int[] passwords,
+				final long[] timesMillis, final boolean[] results, final long[] words,
+				final int from, final int to) {
+
+			this.table = table;
+			this.accounts = accounts;
+			this.passwords = passwords;
+			this.timesMillis = timesMillis;
+			this.results = results;
+			this.words = words;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > SLICE) {
+				// split on a slice boundary, so no two tasks write the same word
+				final int slices = (to - from + SLICE - 1) / SLICE;
+				final int middle = from + (slices >>> 1) * SLICE;
+				invokeAll(
+						new Validation(table, accounts, passwords, timesMillis, results, words, from, middle),
+						new Validation(table, accounts, passwords, timesMillis, results, words, middle, to));
+				return;
+			}
+
+			for (int i = from; i < to; ++i) {
+				final boolean valid = validate(i);
+
+				if (results != null) {
+					results[i] = valid;
+				} else if (valid) {
+					words[i >>> 6] |= 1L << i;
+				}
+			}
+		}
+
+		/**
+		 * @return whether tuple <code>i</code> is valid; a malformed tuple is merely invalid, so it
+		 *         does not abort the other tuples of the batch
+		 */
+		private boolean validate(final int i) {
+			if (timesMillis[i] < 0) {
+				return false;
+			}
+
+			try {
+				return totp.validate(passwords[i], table, accounts[i], timesMillis[i]);
+			} catch (IndexOutOfBoundsException e) {
+				// no such account
+				return false;
+			} catch (IllegalArgumentException e) {
+				// the account's record does not fit the time-based parameters
+				return false;
+			}
+		}
+	}
+}
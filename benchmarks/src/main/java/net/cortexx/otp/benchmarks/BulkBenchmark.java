@@ -0,0 +1,84 @@
+/*
+ * Copyright 2013 Patrick Kelchner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.cortexx.otp.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import net.cortexx.otp.BulkHmacBasedOneTimePassword;
+import net.cortexx.otp.HmacBasedOneTimePassword;
+import net.cortexx.otp.HmacBasedOneTimePassword.Algorithm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of {@link BulkHmacBasedOneTimePassword} compared to one
+ * {@link HmacBasedOneTimePassword} per secret, in passwords per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BulkBenchmark {
+	private static final int SECRETS = 1024;
+
+	private BulkHmacBasedOneTimePassword bulk;
+	private HmacBasedOneTimePassword[] scalar;
+	private int[] passwords;
+	private long counter;
+
+	@Setup
+	public void setUp() {
+		final byte[][] secrets = new byte[SECRETS][];
+		scalar = new HmacBasedOneTimePassword[SECRETS];
+
+		for (int i = 0; i < SECRETS; ++i) {
+			secrets[i] = Secrets.secret(Algorithm.SHA1, i);
+			scalar[i] = new HmacBasedOneTimePassword(Algorithm.SHA1, 6, secrets[i]);
+		}
+
+		bulk = new BulkHmacBasedOneTimePassword(6, secrets);
+		passwords = new int[SECRETS];
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SECRETS)
+	public int[] bulk() {
+		bulk.generatePasswords(counter++, passwords);
+		return passwords;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SECRETS)
+	public int[] scalar() {
+		final long c = counter++;
+		for (int i = 0; i < SECRETS; ++i) {
+			passwords[i] = scalar[i].generatePassword(c);
+		}
+		return passwords;
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2013 Patrick Kelchner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.cortexx.otp.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import net.cortexx.otp.CoarseTimeSource;
+import net.cortexx.otp.HmacBasedOneTimePassword;
+import net.cortexx.otp.HmacBasedOneTimePassword.Algorithm;
+import net.cortexx.otp.TimeBasedOneTimePassword;
+import net.cortexx.otp.TimeSource;
+import net.cortexx.otp.TimeslotCache;
+import net.cortexx.otp.WindowPolicy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of reading the clock, isolated by validating against a {@link TimeslotCache} that computes
+ * no HMAC: <code>system</code> reads the system clock on every call, <code>coarse</code> a
+ * {@link CoarseTimeSource} ticking every millisecond.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ClockBenchmark {
+	@Param({ "system", "coarse" })
+	public String clock;
+
+	private TimeSource source;
+	private TimeBasedOneTimePassword totp;
+	private TimeslotCache cache;
+	private int current;
+
+	@Setup
+	public void setUp() {
+		source = "coarse".equals(clock)
+				? new CoarseTimeSource(1, TimeUnit.MILLISECONDS, 30, TimeUnit.SECONDS)
+				: TimeSource.SYSTEM;
+		totp = new TimeBasedOneTimePassword(30, TimeUnit.SECONDS, WindowPolicy.symmetric(1), source);
+
+		final HmacBasedOneTimePassword otp =
+				new HmacBasedOneTimePassword(Algorithm.SHA1, 6, Secrets.secret(Algorithm.SHA1, 0));
+		cache = totp.createCache(otp);
+		current = totp.generatePassword(otp);
+	}
+
+	@TearDown
+	public void tearDown() {
+		if (source instanceof CoarseTimeSource) {
+			((CoarseTimeSource) source).shutdown();
+		}
+	}
+
+	@Benchmark
+	public boolean validateCached() {
+		return totp.validate(current, cache);
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2013 Patrick Kelchner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.cortexx.otp.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import net.cortexx.otp.HmacBasedOneTimePassword;
+import net.cortexx.otp.HmacBasedOneTimePassword.Algorithm;
+import net.cortexx.otp.HmacEngines;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of one {@link HmacBasedOneTimePassword} shared by as many threads as there are
+ * cores, per engine and concurrency level.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(Threads.MAX)
+@State(Scope.Benchmark)
+public class ContentionBenchmark {
+	@Param({ "java", "jca" })
+	public String engine;
+
+	@Param({ "1", "4", "16" })
+	public int concurrencyLevel;
+
+	private HmacBasedOneTimePassword otp;
+
+	@Setup
+	public void setUp() {
+		HmacEngines.pin(Algorithm.SHA1, engine);
+		otp = new HmacBasedOneTimePassword(Algorithm.SHA1, 6, concurrencyLevel,
+				Secrets.secret(Algorithm.SHA1, 0));
+	}
+
+	@Benchmark
+	public int generatePassword(final Counter counter) {
+		return otp.generatePassword(counter.next++);
+	}
+
+	@State(Scope.Thread)
+	public static class Counter {
+		long next;
+	}
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2013 Patrick Kelchner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.cortexx.otp.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import net.cortexx.otp.HmacBasedOneTimePassword;
+import net.cortexx.otp.HmacBasedOneTimePassword.Algorithm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of formatting passwords as strings compared to writing them into a reused buffer.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FormatBenchmark {
+	@Param({ "6", "8" })
+	public int digits;
+
+	private HmacBasedOneTimePassword otp;
+	private byte[] buffer;
+	private long counter;
+
+	@Setup
+	public void setUp() {
+		otp = new HmacBasedOneTimePassword(Algorithm.SHA1, digits, Secrets.secret(Algorithm.SHA1, 0));
+		buffer = new byte[digits];
+	}
+
+	@Benchmark
+	public String generatePasswordString() {
+		return otp.generatePasswordString(counter++);
+	}
+
+	@Benchmark
+	public byte[] writePassword() {
+		otp.writePassword(counter++, buffer, 0);
+		return buffer;
+	}
+}
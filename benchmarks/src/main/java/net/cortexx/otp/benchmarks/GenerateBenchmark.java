@@ -0,0 +1,78 @@
+/*
+ * Copyright 2013 Patrick Kelchner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.cortexx.otp.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import net.cortexx.otp.HmacBasedOneTimePassword;
+import net.cortexx.otp.HmacBasedOneTimePassword.Algorithm;
+import net.cortexx.otp.HmacEngines;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Single-threaded throughput of {@link HmacBasedOneTimePassword} per algorithm, digit count and
+ * engine.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GenerateBenchmark {
+	@Param({ "SHA1", "SHA256", "SHA512" })
+	public Algorithm algorithm;
+
+	@Param({ "6", "8" })
+	public int digits;
+
+	@Param({ "java", "jca" })
+	public String engine;
+
+	private HmacBasedOneTimePassword otp;
+	private int[] passwords;
+	private long counter;
+
+	@Setup
+	public void setUp() {
+		HmacEngines.pin(algorithm, engine);
+		otp = new HmacBasedOneTimePassword(algorithm, digits, Secrets.secret(algorithm, 0));
+		passwords = new int[100];
+	}
+
+	@Benchmark
+	public int generatePassword() {
+		return otp.generatePassword(counter++);
+	}
+
+	@Benchmark
+	public int[] generatePasswords() {
+		otp.generatePasswords(counter, passwords, 0, passwords.length);
+		counter += passwords.length;
+		return passwords;
+	}
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2013 Patrick Kelchner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.cortexx.otp.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import net.cortexx.otp.HmacBasedOneTimePassword.Algorithm;
+import net.cortexx.otp.google.GoogleAuthenticator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of creating <code>otpauth</code> URIs with {@link GoogleAuthenticator}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GoogleAuthenticatorBenchmark {
+	private byte[] secret;
+
+	@Setup
+	public void setUp() {
+		secret = Secrets.secret(Algorithm.SHA1, 0);
+	}
+
+	@Benchmark
+	public String createDefaultTimeBasedURI() {
+		return GoogleAuthenticator.createDefaultTimeBasedURI("user@example.com", secret);
+	}
+
+	@Benchmark
+	public String createTimeBasedURI() {
+		return GoogleAuthenticator.createTimeBasedURI("user@example.com", Algorithm.SHA256, 8, 60, secret);
+	}
+}
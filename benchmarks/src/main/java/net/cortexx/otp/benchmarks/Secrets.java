@@ -0,0 +1,46 @@
+/*
+ * Copyright 2013 Patrick Kelchner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.cortexx.otp.benchmarks;
+
+import java.util.Random;
+
+import net.cortexx.otp.HmacBasedOneTimePassword.Algorithm;
+
+/**
+ * Deterministic secrets of the length recommended for each algorithm.
+ */
+final class Secrets {
+	static byte[] secret(final Algorithm algorithm, final long seed) {
+		final int length;
+		switch (algorithm) {
+		case SHA256:
+			length = 32;
+			break;
+		case SHA512:
+			length = 64;
+			break;
+		default:
+			length = 20;
+		}
+
+		final byte[] secret = new byte[length];
+		new Random(seed).nextBytes(secret);
+		return secret;
+	}
+
+	private Secrets() {
+	}
+}
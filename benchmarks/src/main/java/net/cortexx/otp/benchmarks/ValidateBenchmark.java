@@ -0,0 +1,126 @@
+/*
+ * Copyright 2013 Patrick Kelchner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.cortexx.otp.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import net.cortexx.otp.HmacBasedOneTimePassword;
+import net.cortexx.otp.HmacBasedOneTimePassword.Algorithm;
+import net.cortexx.otp.TimeBasedOneTimePassword;
+import net.cortexx.otp.TimeSource;
+import net.cortexx.otp.TimeslotCache;
+import net.cortexx.otp.WindowPolicy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Average cost of {@link TimeBasedOneTimePassword#validate(int, HmacBasedOneTimePassword)} as a
+ * function of the timeslot variance and the order the window is tried in.
+ * <p>
+ * A rejected password always evaluates the whole window, the current and the previous password
+ * only up to their timeslot. <code>ascending</code> tries the window from the earliest timeslot
+ * on, <code>nearest</code> is the default {@link WindowPolicy}, trying the current timeslot
+ * first. The timeslot is read from a fixed clock, halfway through a timeslot, so that no run
+ * crosses a timeslot boundary.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ValidateBenchmark {
+	private static final long NOW = 1500000015000L;
+
+	private static final TimeSource FIXED = new TimeSource() {
+		@Override
+		public long currentTimeMillis() {
+			return NOW;
+		}
+	};
+
+	@Param({ "1", "2", "5", "10" })
+	public int timeslotVariance;
+
+	@Param({ "ascending", "nearest" })
+	public String order;
+
+	private TimeBasedOneTimePassword totp;
+	private HmacBasedOneTimePassword otp;
+	private TimeslotCache cache;
+	private int current;
+	private int previous;
+	private int rejected;
+	private String currentString;
+
+	@Setup
+	public void setUp() {
+		totp = new TimeBasedOneTimePassword(30, TimeUnit.SECONDS, window(), FIXED);
+		otp = new HmacBasedOneTimePassword(Algorithm.SHA1, 6, Secrets.secret(Algorithm.SHA1, 0));
+		cache = totp.createCache(otp);
+		current = totp.generatePassword(otp);
+		previous = otp.generatePassword(NOW / 30000 - 1);
+		currentString = totp.generatePasswordString(otp);
+		rejected = 1000000;
+	}
+
+	@Benchmark
+	public boolean validateCurrent() {
+		return totp.validate(current, otp);
+	}
+
+	@Benchmark
+	public boolean validatePrevious() {
+		return totp.validate(previous, otp);
+	}
+
+	@Benchmark
+	public boolean validateRejected() {
+		return totp.validate(rejected, otp);
+	}
+
+	@Benchmark
+	public boolean validateString() {
+		return totp.validate(currentString, otp);
+	}
+
+	@Benchmark
+	public boolean validateRejectedCached() {
+		return totp.validate(rejected, cache);
+	}
+
+	private WindowPolicy window() {
+		if ("ascending".equals(order)) {
+			final int[] offsets = new int[2 * timeslotVariance + 1];
+			for (int i = 0; i < offsets.length; ++i) {
+				offsets[i] = i - timeslotVariance;
+			}
+			return WindowPolicy.inOrder(offsets);
+		}
+
+		return WindowPolicy.symmetric(timeslotVariance);
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2013 Patrick Kelchner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.cortexx.otp.openssl;
+
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SymbolLookup;
+import java.lang.invoke.MethodHandle;
+
+import net.cortexx.otp.HmacBasedOneTimePassword.Algorithm;
+
+/**
+ * The functions of the system's OpenSSL <code>libcrypto</code> needed to compute HMACs.
+ */
+final class LibCrypto {
+	/** Library names tried in order, covering OpenSSL 3 and 1.1 on Linux, macOS and Windows. */
+	private static final String[] LIBRARIES = {
+			"libcrypto.so.3", "libcrypto.so.1.1", "libcrypto.so",
+			"libcrypto.3.dylib", "libcrypto.1.1.dylib", "libcrypto.dylib",
+			"libcrypto-3-x64.dll", "libcrypto-1_1-x64.dll"
+	};
+
+	/** The loaded library, or <code>null</code> if none could be loaded. */
+	static final LibCrypto INSTANCE;
+
+	/** The reason the library could not be loaded, or <code>null</code>. */
+	static final String failure;
+
+	static {
+		final StringBuilder reasons = new StringBuilder();
+		LibCrypto loaded = null;
+
+		for (final String name : LIBRARIES) {
+			try {
+				loaded = new LibCrypto(SymbolLookup.libraryLookup(name, Arena.global()));
+				break;
+			} catch (Throwable e) {
+				reasons.append(name).append(": ").append(e.getMessage()).append("; ");
+			}
+		}
+
+		INSTANCE = loaded;
+		failure = loaded == null ? reasons.toString() : null;
+	}
+
+	/** <code>HMAC_CTX *HMAC_CTX_new(void)</code> */
+	final MethodHandle hmacCtxNew;
+	/** <code>void HMAC_CTX_free(HMAC_CTX *ctx)</code> */
+	final MethodHandle hmacCtxFree;
+	/**
+	 * <code>int HMAC_Init_ex(HMAC_CTX *ctx, const void *key, int key_len, const EVP_MD *md,
+	 * ENGINE *impl)</code>
+	 */
+	final MethodHandle hmacInit;
+	/** <code>int HMAC_Update(HMAC_CTX *ctx, const unsigned char *data, size_t len)</code> */
+	final MethodHandle hmacUpdate;
+	/** <code>int HMAC_Final(HMAC_CTX *ctx, unsigned char *md, unsigned int *len)</code> */
+	final MethodHandle hmacFinal;
+
+	private final MemorySegment sha1;
+	private final MemorySegment sha256;
+	private final MemorySegment sha512;
+
+	private LibCrypto(final SymbolLookup library) throws Throwable {
+		final Linker linker = Linker.nativeLinker();
+
+		hmacCtxNew = linker.downcallHandle(function(library, "HMAC_CTX_new"),
+				FunctionDescriptor.of(ADDRESS));
+		hmacCtxFree = linker.downcallHandle(function(library, "HMAC_CTX_free"),
+				FunctionDescriptor.ofVoid(ADDRESS));
+		hmacInit = linker.downcallHandle(function(library, "HMAC_Init_ex"),
+				FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS, JAVA_INT, ADDRESS, ADDRESS));
+		hmacUpdate = linker.downcallHandle(function(library, "HMAC_Update"),
+				FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS, JAVA_LONG));
+		hmacFinal = linker.downcallHandle(function(library, "HMAC_Final"),
+				FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS, ADDRESS));
+
+		final FunctionDescriptor digest = FunctionDescriptor.of(ADDRESS);
+		sha1 = (MemorySegment) linker.downcallHandle(function(library, "EVP_sha1"), digest).invokeExact();
+		sha256 = (MemorySegment) linker.downcallHandle(function(library, "EVP_sha256"), digest).invokeExact();
+		sha512 = (MemorySegment) linker.downcallHandle(function(library, "EVP_sha512"), digest).invokeExact();
+	}
+
+	/**
+	 * @return the <code>EVP_MD</code> of the given algorithm
+	 */
+	MemorySegment digest(final Algorithm algorithm) {
+		switch (algorithm) {
+		case SHA1:
+			return sha1;
+		case SHA256:
+			return sha256;
+		case SHA512:
+			return sha512;
+		default:
+			throw new IllegalArgumentException(String.valueOf(algorithm));
+		}
+	}
+
+	private static MemorySegment function(final SymbolLookup library, final String name) {
+		return library.find(name).orElseThrow(() -> new UnsatisfiedLinkError(name));
+	}
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2013 Patrick Kelchner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.cortexx.otp.openssl;
+
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.ref.Cleaner;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.cortexx.otp.HmacBasedOneTimePassword.Algorithm;
+import net.cortexx.otp.HmacEngine;
+
+/**
+ * {@link HmacEngine} computing HMACs with the <code>HMAC_CTX</code> functions of OpenSSL's
+ * <code>libcrypto</code>.
+ * <p>
+ * The secret is copied off-heap once. Each thread using an engine gets its own
+ * <code>HMAC_CTX</code>, initialized with the key on first use. Every password then only resets
+ * that context to its keyed state, which skips the digest lookup, the key schedule and the
+ * allocation of a context, and costs three downcalls and no allocation. The counter and hash
+ * buffers are off-heap and kept per thread as well.
+ * <p>
+ * Once the engine is unreachable, its contexts are freed, which makes OpenSSL wipe them, and its
+ * copy of the secret is overwritten with zeros.
+ */
+final class OpenSslHmacEngine extends HmacEngine {
+	private static final ValueLayout.OfLong COUNTER = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+	private static final ValueLayout.OfInt HASH = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+
+	private static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial(Buffers::new);
+	private static final Cleaner CLEANER = Cleaner.create();
+
+	private final LibCrypto library;
+	private final MemorySegment digest;
+	private final int hashLength;
+	private final Resources resources;
+	private final ThreadLocal<MemorySegment> contexts = new ThreadLocal<>();
+
+	OpenSslHmacEngine(final LibCrypto library, final Algorithm algorithm, final byte[] secret) {
+		this.library = library;
+		this.digest = library.digest(algorithm);
+		this.resources = new Resources(library, secret);
+
+		CLEANER.register(this, resources);
+
+		switch (algorithm) {
+		case SHA1:
+			hashLength = 20;
+			break;
+		case SHA256:
+			hashLength = 32;
+			break;
+		default:
+			hashLength = 64;
+		}
+	}
+
+	@Override
+	protected int truncatedHash(final long counter) {
+		return truncatedHash(counter, context(), BUFFERS.get());
+	}
+
+	@Override
+	protected void truncatedHashes(final long firstCounter, final int[] hashes, final int offset, final int length) {
+		final MemorySegment context = context();
+		final Buffers buffers = BUFFERS.get();
+
+		for (int i = 0; i < length; ++i) {
+			hashes[offset + i] = truncatedHash(firstCounter + i, context, buffers);
+		}
+	}
+
+	private int truncatedHash(final long counter, final MemorySegment context, final Buffers buffers) {
+		buffers.counter.set(COUNTER, 0, counter);
+
+		try {
+			// a NULL key and digest reset the context to the state after absorbing the key
+			if ((int) library.hmacInit.invokeExact(context, MemorySegment.NULL, 0,
+					MemorySegment.NULL, MemorySegment.NULL) != 1
+					|| (int) library.hmacUpdate.invokeExact(context, buffers.counter, 8L) != 1
+					|| (int) library.hmacFinal.invokeExact(context, buffers.hash, buffers.hashLength) != 1) {
+				throw new IllegalStateException("HMAC failed");
+			}
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+
+		final int offset = buffers.hash.get(JAVA_BYTE, hashLength - 1) & 0x0F;
+		return buffers.hash.get(HASH, offset) & 0x7FFFFFFF;
+	}
+
+	/**
+	 * @return the context of the calling thread, creating and keying it on first use
+	 */
+	private MemorySegment context() {
+		MemorySegment context = contexts.get();
+		if (context == null) {
+			context = resources.newContext(digest);
+			contexts.set(context);
+		}
+		return context;
+	}
+
+	/**
+	 * The off-heap copy of the secret and the contexts of an engine, released once the engine is
+	 * unreachable. Must not refer to the engine.
+	 */
+	private static final class Resources implements Runnable {
+		private final LibCrypto library;
+		private final Arena arena = Arena.ofShared();
+		private final MemorySegment key;
+		private final List<MemorySegment> contexts = new ArrayList<>();
+
+		Resources(final LibCrypto library, final byte[] secret) {
+			this.library = library;
+			this.key = arena.allocate(secret.length);
+
+			MemorySegment.copy(secret, 0, key, JAVA_BYTE, 0, secret.length);
+		}
+
+		synchronized MemorySegment newContext(final MemorySegment digest) {
+			try {
+				final MemorySegment context = (MemorySegment) library.hmacCtxNew.invokeExact();
+				if (context.address() == 0) {
+					throw new IllegalStateException("HMAC_CTX_new failed");
+				}
+				contexts.add(context);
+
+				if ((int) library.hmacInit.invokeExact(context, key, (int) key.byteSize(),
+						digest, MemorySegment.NULL) != 1) {
+					throw new IllegalStateException("HMAC_Init_ex failed");
+				}
+				return context;
+			} catch (RuntimeException | Error e) {
+				throw e;
+			} catch (Throwable e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		@Override
+		public synchronized void run() {
+			try {
+				for (final MemorySegment context : contexts) {
+					library.hmacCtxFree.invokeExact(context);
+				}
+			} catch (Throwable e) {
+				// nothing sensible to do while cleaning up
+			} finally {
+				contexts.clear();
+				key.fill((byte) 0);
+				arena.close();
+			}
+		}
+	}
+
+	/**
+	 * The off-heap buffers of one thread.
+	 */
+	private static final class Buffers {
+		final MemorySegment counter;
+		final MemorySegment hash;
+		final MemorySegment hashLength;
+
+		Buffers() {
+			final MemorySegment buffers = Arena.ofAuto().allocate(8 + 64 + 4, 8);
+			counter = buffers.asSlice(0, 8);
+			hash = buffers.asSlice(8, 64);
+			hashLength = buffers.asSlice(8 + 64, 4);
+		}
+	}
+}
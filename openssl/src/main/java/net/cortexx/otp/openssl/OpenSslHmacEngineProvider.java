@@ -0,0 +1,55 @@
+/*
+ * Copyright 2013 Patrick Kelchner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.cortexx.otp.openssl;
+
+import net.cortexx.otp.HmacBasedOneTimePassword.Algorithm;
+import net.cortexx.otp.HmacEngine;
+import net.cortexx.otp.HmacEngineProvider;
+
+/**
+ * Provides HMAC engines backed by the system's OpenSSL <code>libcrypto</code>, named
+ * <code>openssl</code>.
+ * <p>
+ * This provider registers itself with {@link net.cortexx.otp.HmacEngines} when this library is
+ * on the class path, and takes part in its calibration like any other engine. If
+ * <code>libcrypto</code> cannot be loaded it reports itself unavailable, and the other engines
+ * are used instead. The JVM needs <code>--enable-native-access=ALL-UNNAMED</code> (or the name of
+ * the module containing this class) to call into the library without warnings.
+ */
+public final class OpenSslHmacEngineProvider extends HmacEngineProvider {
+	@Override
+	public String getName() {
+		return "openssl";
+	}
+
+	@Override
+	public boolean isAvailable() {
+		return LibCrypto.INSTANCE != null;
+	}
+
+	@Override
+	public boolean supports(final Algorithm algorithm) {
+		return isAvailable();
+	}
+
+	@Override
+	public HmacEngine createEngine(final Algorithm algorithm, final int concurrencyLevel, final byte[] secret) {
+		if (!isAvailable()) {
+			throw new IllegalStateException("libcrypto is not available: " + LibCrypto.failure);
+		}
+		return new OpenSslHmacEngine(LibCrypto.INSTANCE, algorithm, secret);
+	}
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2013 Patrick Kelchner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.cortexx.otp;
+
+import java.util.Arrays;
+
+/**
+ * Generates SHA1 {@link HmacBasedOneTimePassword}s for many secrets at once.
+ * This type is thread-safe.
+ * <p>
+ * The HMAC midstates of all secrets are kept in one flat array. Passwords are computed for
+ * {@value #LANES} secrets side by side: every word of the SHA-1 message schedule and every
+ * working variable is an array holding that word for all lanes, and every round is one loop over
+ * the lanes without branches. The JIT compiles these loops to SIMD instructions where the
+ * hardware has them, which makes a password several times cheaper than computing it on its own;
+ * elsewhere they run as plain scalar code with the same result.
+ * <p>
+ * This class is designed for bulk jobs such as pre-computing the current passwords of a large set
+ * of accounts. Use {@link HmacBasedOneTimePassword} for individual secrets.
+ */
+public final class BulkHmacBasedOneTimePassword {
+	/**
+	 * The number of secrets hashed side by side. Large enough for the JIT to vectorize the loops
+	 * over the lanes, small enough for the working memory of a thread to stay in the L1 cache.
+	 */
+	public static final int LANES = 64;
+
+	private static final ThreadLocal<Lanes> SCRATCH = new ThreadLocal<Lanes>() {
+		@Override
+		protected Lanes initialValue() {
+			return new Lanes();
+		}
+	};
+
+	private final int[] states;
+	private final int size;
+	private final int truncation;
+
+	/**
+	 * @param numberOfDigits
+	 *        the number of digits of the generated passwords
+	 * @param secrets
+	 *        the secrets to generate passwords from. The password of <code>secrets[i]</code> is
+	 *        always returned at index <code>i</code>.
+	 */
+	public BulkHmacBasedOneTimePassword(final int numberOfDigits, final byte[]... secrets) {
+		if (secrets == null) {
+			throw new NullPointerException("secrets");
+		}
+
+		truncation = HmacBasedOneTimePassword.truncation(numberOfDigits);
+		size = secrets.length;
+		states = new int[size * HmacSha1.STATE_INTS];
+
+		for (int i = 0; i < size; ++i) {
+			if (secrets[i] == null) {
+				throw new NullPointerException("secrets[" + i + "]");
+			}
+			if (secrets[i].length == 0) {
+				throw new IllegalArgumentException("'secrets[" + i + "]' must contain at least one byte");
+			}
+			HmacSha1.midstate(secrets[i], states, i * HmacSha1.STATE_INTS);
+		}
+	}
+
+	/**
+	 * @return the number of secrets
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Generates the password of every secret for the same counter, e.g. the current timeslot.
+	 * 
+	 * @param passwords
+	 *        receives the password of secret <code>i</code> at index <code>i</code>
+	 */
+	public void generatePasswords(final long counter, final int[] passwords) {
+		if (passwords == null) {
+			throw new NullPointerException("passwords");
+		}
+		if (passwords.length < size) {
+			throw new IndexOutOfBoundsException();
+		}
+
+		final Lanes lanes = SCRATCH.get();
+
+		for (int first = 0; first < size; first += LANES) {
+			Arrays.fill(lanes.w[0], (int) (counter >>> 32));
+			Arrays.fill(lanes.w[1], (int) counter);
+			generate(first, lanes, passwords);
+		}
+	}
+
+	/**
+	 * Generates the password of every secret for its own counter.
+	 * 
+	 * @param counters
+	 *        the counter of secret <code>i</code> at index <code>i</code>
+	 * @param passwords
+	 *        receives the password of secret <code>i</code> at index <code>i</code>
+	 */
+	public void generatePasswords(final long[] counters, final int[] passwords) {
+		if (counters == null) {
+			throw new NullPointerException("counters");
+		}
+		if (passwords == null) {
+			throw new NullPointerException("passwords");
+		}
+		if (counters.length < size || passwords.length < size) {
+			throw new IndexOutOfBoundsException();
+		}
+
+		final Lanes lanes = SCRATCH.get();
+
+		for (int first = 0; first < size; first += LANES) {
+			for (int l = 0; l < LANES; ++l) {
+				final long counter = counters[Math.min(first + l, size - 1)];
+				lanes.w[0][l] = (int) (counter >>> 32);
+				lanes.w[1][l] = (int) counter;
+			}
+			generate(first, lanes, passwords);
+		}
+	}
+
+	/**
+	 * Generates the passwords of the secrets <code>first..first + LANES</code>. Lanes past the
+	 * last secret repeat it and are discarded. The lanes' counters are expected in the first two
+	 * words of the message schedule.
+	 */
+	private void generate(final int first, final Lanes lanes, final int[] passwords) {
+		final int[][] w = lanes.w;
+		final int[][] out = lanes.out;
+
+		Arrays.fill(w[2], 0x80000000);
+		for (int i = 3; i < 15; ++i) {
+			Arrays.fill(w[i], 0);
+		}
+		Arrays.fill(w[15], (64 + 8) * 8);
+		load(first, 0, lanes.h);
+		compress(lanes);
+
+		for (int k = 0; k < 5; ++k) {
+			System.arraycopy(out[k], 0, w[k], 0, LANES);
+		}
+		Arrays.fill(w[5], 0x80000000);
+		for (int i = 6; i < 15; ++i) {
+			Arrays.fill(w[i], 0);
+		}
+		Arrays.fill(w[15], (64 + 20) * 8);
+		load(first, 5, lanes.h);
+		compress(lanes);
+
+		final int count = Math.min(LANES, size - first);
+		for (int l = 0; l < count; ++l) {
+			final int byteOffset = out[4][l] & 0x0F;
+			final int word = byteOffset >>> 2;
+			final int shift = (byteOffset & 3) << 3;
+
+			final int bits = shift == 0
+					? out[word][l]
+					: out[word][l] << shift | out[word + 1][l] >>> (32 - shift);
+
+			passwords[first + l] = (bits & 0x7FFFFFFF) % truncation;
+		}
+	}
+
+	/**
+	 * Gathers the inner (<code>half == 0</code>) or outer (<code>half == 5</code>) midstates of
+	 * the secrets <code>first..first + LANES</code> into the lanes.
+	 */
+	private void load(final int first, final int half, final int[][] h) {
+		for (int l = 0; l < LANES; ++l) {
+			final int state = Math.min(first + l, size - 1) * HmacSha1.STATE_INTS + half;
+			for (int k = 0; k < 5; ++k) {
+				h[k][l] = states[state + k];
+			}
+		}
+	}
+
+	/**
+	 * Compresses the blocks of all lanes into their midstates, leaving the results in
+	 * <code>out</code>.
+	 */
+	private static void compress(final Lanes lanes) {
+		final int[][] w = lanes.w;
+
+		for (int t = 16; t < 80; ++t) {
+			final int[] wt = w[t];
+			final int[] w3 = w[t - 3];
+			final int[] w8 = w[t - 8];
+			final int[] w14 = w[t - 14];
+			final int[] w16 = w[t - 16];
+
+			for (int l = 0; l < LANES; ++l) {
+				wt[l] = Integer.rotateLeft(w3[l] ^ w8[l] ^ w14[l] ^ w16[l], 1);
+			}
+		}
+
+		for (int k = 0; k < 5; ++k) {
+			System.arraycopy(lanes.h[k], 0, lanes.v[k], 0, LANES);
+		}
+
+		// instead of moving the working variables between rounds, their roles rotate
+		int[] a = lanes.v[0];
+		int[] b = lanes.v[1];
+		int[] c = lanes.v[2];
+		int[] d = lanes.v[3];
+		int[] e = lanes.v[4];
+
+		for (int t = 0; t < 80; ++t) {
+			final int[] wt = w[t];
+
+			if (t < 20) {
+				for (int l = 0; l < LANES; ++l) {
+					e[l] += Integer.rotateLeft(a[l], 5) + (d[l] ^ (b[l] & (c[l] ^ d[l]))) + wt[l] + 0x5A827999;
+					b[l] = Integer.rotateLeft(b[l], 30);
+				}
+			} else if (t < 40) {
+				for (int l = 0; l < LANES; ++l) {
+					e[l] += Integer.rotateLeft(a[l], 5) + (b[l] ^ c[l] ^ d[l]) + wt[l] + 0x6ED9EBA1;
+					b[l] = Integer.rotateLeft(b[l], 30);
+				}
+			} else if (t < 60) {
+				for (int l = 0; l < LANES; ++l) {
+					e[l] += Integer.rotateLeft(a[l], 5) + (b[l] & c[l] | d[l] & (b[l] | c[l])) + wt[l] + 0x8F1BBCDC;
+					b[l] = Integer.rotateLeft(b[l], 30);
+				}
+			} else {
+				for (int l = 0; l < LANES; ++l) {
+					e[l] += Integer.rotateLeft(a[l], 5) + (b[l] ^ c[l] ^ d[l]) + wt[l] + 0xCA62C1D6;
+					b[l] = Integer.rotateLeft(b[l], 30);
+				}
+			}
+
+			final int[] temp = e;
+			e = d;
+			d = c;
+			c = b;
+			b = a;
+			a = temp;
+		}
+
+		// 80 rounds rotate the roles back into place
+		for (int k = 0; k < 5; ++k) {
+			final int[] h = lanes.h[k];
+			final int[] v = lanes.v[k];
+			final int[] out = lanes.out[k];
+
+			for (int l = 0; l < LANES; ++l) {
+				out[l] = h[l] + v[l];
+			}
+		}
+	}
+
+	/**
+	 * The working memory of one thread. Each word is an array holding it for all lanes.
+	 */
+	private static final class Lanes {
+		final int[][] w = new int[80][LANES];
+		final int[][] h = new int[5][LANES];
+		final int[][] v = new int[5][LANES];
+		final int[][] out = new int[5][LANES];
+	}
+}
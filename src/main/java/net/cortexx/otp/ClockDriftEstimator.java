@@ -0,0 +1,217 @@
+/*
+ * Copyright 2013 Patrick Kelchner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.cortexx.otp;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Learns the clock drift of each of a fixed number of accounts and validates time-based
+ * passwords around it, most likely timeslot first.
+ * This type is thread-safe.
+ * <p>
+ * The drift of an account is the offset, in timeslots, of the timeslot in which its last password
+ * was accepted. Validation first tries a narrow window of the drift and the timeslots right next
+ * to it. Only after a miss does it fall back to the rest of the regular window of the time-based
+ * parameters, in the order of their {@link WindowPolicy}. Tokens with a stable clock are
+ * therefore usually validated with a single HMAC, however wide the window.
+ * <p>
+ * Exactly the passwords of the regular window around the current timeslot are accepted, so
+ * drifts are learned only within that window and a token whose clock is corrected is accepted
+ * right away.
+ * <p>
+ * Drifts are packed as signed bytes, four to an int, and updated by compare-and-set.
+ */
+public final class ClockDriftEstimator {
+	/** The distance from the drift of the timeslots tried before the rest of the window. */
+	private static final int NARROW = 1;
+
+	private final TimeBasedOneTimePassword totp;
+	private final int lookBack;
+	private final int lookAhead;
+	private final int capacity;
+	private final AtomicIntegerArray drifts;
+
+	/**
+	 * @param totp
+	 *        the time-based parameters, whose window bounds the drifts learned; it must not reach
+	 *        further than 127 timeslots in either direction
+	 * @param capacity
+	 *        the number of accounts
+	 */
+	public ClockDriftEstimator(final TimeBasedOneTimePassword totp, final int capacity) {
+		if (totp == null) {
+			throw new NullPointerException("totp");
+		}
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("'capacity' must be positive");
+		}
+
+		final WindowPolicy window = totp.getWindowPolicy();
+		if (window.getLookBack() > Byte.MAX_VALUE || window.getLookAhead() > Byte.MAX_VALUE) {
+			throw new IllegalArgumentException("'totp' must not accept more than 127 timeslots in either direction");
+		}
+
+		this.totp = totp;
+		this.lookBack = window.getLookBack();
+		this.lookAhead = window.getLookAhead();
+		this.capacity = capacity;
+		this.drifts = new AtomicIntegerArray((capacity + 3) >>> 2);
+	}
+
+	/**
+	 * @return the number of accounts
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the learned drift of the given account in timeslots, 0 if none was learned
+	 */
+	public int getDrift(final int account) {
+		check(account);
+		return (byte) (drifts.get(account >>> 2) >>> shift(account));
+	}
+
+	/**
+	 * Forgets the learned drift of the given account.
+	 */
+	public void reset(final int account) {
+		setDrift(account, 0);
+	}
+
+	/**
+	 * Validates that the given password is currently valid, trying the learned drift of the given
+	 * account first, and learns the drift from the matching timeslot.
+	 * 
+	 * @param password
+	 *        the password to be validated
+	 * @param otp
+	 *        the one-time password of the account
+	 * @param account
+	 *        the index of the account
+	 * @return <code>true</code> if the given password is valid, <code>false</code> if not.
+	 */
+	public boolean validate(final int password, final HmacBasedOneTimePassword otp, final int account) {
+		final int drift = getDrift(account);
+		final int[] order = totp.getOrder();
+		final long timeslot = totp.currentTimeslot();
+
+		for (int i = 0; i <= 2 * NARROW; ++i) {
+			final int offset = drift + step(i);
+			if (inWindow(offset) && password == otp.generatePassword(timeslot + offset)) {
+				learn(account, drift, offset);
+				return true;
+			}
+		}
+
+		// missed: the rest of the regular window
+		for (int i = 0; i < order.length; ++i) {
+			final int offset = order[i];
+			if (Math.abs(offset - drift) > NARROW && password == otp.generatePassword(timeslot + offset)) {
+				learn(account, drift, offset);
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Validates that the given password is currently valid for an account in the given table,
+	 * trying the account's learned drift first, and learns the drift from the matching timeslot.
+	 * 
+	 * @param password
+	 *        the password to be validated
+	 * @param table
+	 *        the table holding the account
+	 * @param account
+	 *        the index of the account in both <code>table</code> and this estimator
+	 * @return <code>true</code> if the given password is valid, <code>false</code> if not.
+	 * @throws IllegalArgumentException
+	 *         if <code>table</code> is a {@link MappedSecretTable} and the timeslot length of the
+	 *         record differs from the one of the time-based parameters
+	 */
+	public boolean validate(final int password, final OneTimePasswordTable table, final int account) {
+		totp.checkTimeslotLength(table, account);
+
+		final int drift = getDrift(account);
+		final int[] order = totp.getOrder();
+		final long timeslot = totp.currentTimeslot();
+
+		for (int i = 0; i <= 2 * NARROW; ++i) {
+			final int offset = drift + step(i);
+			if (inWindow(offset) && password == table.generatePassword(account, timeslot + offset)) {
+				learn(account, drift, offset);
+				return true;
+			}
+		}
+
+		// missed: the rest of the regular window
+		for (int i = 0; i < order.length; ++i) {
+			final int offset = order[i];
+			if (Math.abs(offset - drift) > NARROW && password == table.generatePassword(account, timeslot + offset)) {
+				learn(account, drift, offset);
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return the i-th offset from the drift: 0, -1, 1, -2, 2, ...
+	 */
+	private static int step(final int i) {
+		return (i & 1) == 0 ? i >>> 1 : -((i + 1) >>> 1);
+	}
+
+	private boolean inWindow(final int offset) {
+		return offset >= -lookBack && offset <= lookAhead;
+	}
+
+	/**
+	 * Must only be called with offsets inside the regular window.
+	 */
+	private void learn(final int account, final int drift, final int offset) {
+		if (offset != drift) {
+			setDrift(account, offset);
+		}
+	}
+
+	private void setDrift(final int account, final int drift) {
+		check(account);
+
+		final int index = account >>> 2;
+		final int shift = shift(account);
+
+		int packed;
+		do {
+			packed = drifts.get(index);
+		} while (!drifts.compareAndSet(index, packed,
+				packed & ~(0xFF << shift) | (drift & 0xFF) << shift));
+	}
+
+	private static int shift(final int account) {
+		return (account & 3) << 3;
+	}
+
+	private void check(final int account) {
+		if (account < 0 || account >= capacity) {
+			throw new IndexOutOfBoundsException("account " + account);
+		}
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2013 Patrick Kelchner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.cortexx.otp;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A time source that reads the system clock on a background thread at a fixed resolution and
+ * answers from volatile fields, so validating a password reads a field instead of the clock.
+ * This type is thread-safe.
+ * <p>
+ * Besides the time, the current timeslot of one timeslot length is kept, saving the division
+ * on every call. The time lags the system clock by at most the resolution, plus scheduling
+ * delays of the background thread.
+ * <p>
+ * After {@link #shutdown()}, the system clock is read on every call.
+ */
+public final class CoarseTimeSource extends TimeSource {
+	private final long slotMillis;
+	private final ScheduledExecutorService executor;
+
+	/** both -1 once shut down */
+	private volatile long millis;
+	private volatile long timeslot;
+	private boolean stopped;
+
+	/**
+	 * Creates a time source and starts its background thread.
+	 * 
+	 * @param resolution
+	 *        the interval in which the system clock is read
+	 * @param resolutionUnit
+	 *        the unit of the interval
+	 * @param timeslotLength
+	 *        the length of the timeslots whose current timeslot is kept
+	 * @param timeslotLengthUnit
+	 *        the unit of the length of the timeslots
+	 */
+	public CoarseTimeSource(final long resolution, final TimeUnit resolutionUnit,
+			final long timeslotLength, final TimeUnit timeslotLengthUnit) {
+
+		if (resolutionUnit == null) {
+			throw new NullPointerException("resolutionUnit");
+		}
+		if (timeslotLengthUnit == null) {
+			throw new NullPointerException("timeslotLengthUnit");
+		}
+		if (resolution <= 0) {
+			throw new IllegalArgumentException("'resolution' must be positive");
+		}
+		if (timeslotLength <= 0) {
+			throw new IllegalArgumentException("'timeslotLength' must be positive");
+		}
+
+		this.slotMillis = MILLISECONDS.convert(timeslotLength, timeslotLengthUnit);
+		if (slotMillis <= 0) {
+			throw new IllegalArgumentException("'timeslotLength' must be at least a millisecond");
+		}
+
+		tick();
+
+		this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(final Runnable runnable) {
+				final Thread thread = new Thread(runnable, "otp-clock");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				tick();
+			}
+		}, resolution, resolution, resolutionUnit);
+	}
+
+	@Override
+	public long currentTimeMillis() {
+		final long now = millis;
+		return now >= 0 ? now : System.currentTimeMillis();
+	}
+
+	@Override
+	public long currentTimeslot(final long slotMillis) {
+		if (slotMillis == this.slotMillis) {
+			final long now = timeslot;
+			if (now >= 0) {
+				return now;
+			}
+		}
+
+		return currentTimeMillis() / slotMillis;
+	}
+
+	/**
+	 * Stops the background thread. From now on, the system clock is read on every call.
+	 */
+	public synchronized void shutdown() {
+		stopped = true;
+		executor.shutdownNow();
+
+		timeslot = -1;
+		millis = -1;
+	}
+
+	private synchronized void tick() {
+		if (!stopped) {
+			final long now = System.currentTimeMillis();
+			millis = now;
+			timeslot = now / slotMillis;
+		}
+	}
+}
@@ -0,0 +1,670 @@
+/*
+ * Copyright 2013 Patrick Kelchner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.cortexx.otp;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * A durable store of the counters of {@link HmacBasedOneTimePassword}s, keyed by account id.
+ * This type is thread-safe.
+ * <p>
+ * Counters are kept in memory in an open-addressing map of primitive longs. Every advance is
+ * appended to a write-ahead log and acknowledged once it is on disk. Advances committed
+ * concurrently are written and forced to disk together, so many of them share one
+ * <code>fsync</code>. {@link #getCounter(long)} only reflects advances that are on disk.
+ * <p>
+ * Once the log has grown beyond the compaction threshold, all counters are written to a
+ * snapshot and the log is emptied. Snapshots alternate between two files, each stamped with a
+ * generation and protected by a CRC, so writing one never touches the newest complete one, and
+ * the log is emptied only once the new snapshot is on disk. No file is ever renamed or deleted,
+ * so recovery does not depend on directory updates reaching the disk. When opening a store, the
+ * newest complete snapshot is loaded and the log replayed on top of it. A torn snapshot or torn
+ * records at the end of the log, left by a crash while writing, are discarded: they were never
+ * relied upon. A corrupt record followed by intact ones makes opening the store fail instead,
+ * since dropping them would roll back acknowledged counters.
+ * <p>
+ * Counters only ever move forward. This makes replaying the log idempotent, and makes advancing
+ * a counter a compare-and-set that concurrent validations of the same password cannot both win.
+ */
+public final class CounterStore implements Closeable {
+	/** The default size of the log, in bytes, that triggers a compaction. */
+	public static final long DEFAULT_COMPACTION_THRESHOLD = 16L << 20;
+
+	private static final String[] SNAPSHOTS = { "counters.snapshot.0", "counters.snapshot.1" };
+	private static final String LOG = "counters.log";
+
+	private static final int SNAPSHOT_MAGIC = 0x4F545043;
+	/** magic, generation and number of counters */
+	private static final int SNAPSHOT_HEADER_BYTES = 16;
+	/** account id, counter and a CRC32 of both */
+	private static final int RECORD_BYTES = 20;
+
+	private static final long EMPTY = -1;
+
+	private final File directory;
+	private final long compactionThreshold;
+	/** of the newest snapshot, 0 if there is none; only changed while compacting */
+	private long generation;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition flushed = lock.newCondition();
+	private final CRC32 crc = new CRC32();
+	private final ByteBuffer record = ByteBuffer.allocate(RECORD_BYTES);
+
+	private final RandomAccessFile logFile;
+	private final FileChannel log;
+	private long logBytes;
+
+	private long[] keys;
+	/** the newest counter of each account, including advances not yet on disk */
+	private long[] values;
+	/** the counter of each account as far as it is on disk */
+	private long[] durableValues;
+	private int size;
+
+	private ByteBuffer pending = ByteBuffer.allocate(64 * RECORD_BYTES);
+	private ByteBuffer spare = ByteBuffer.allocate(64 * RECORD_BYTES);
+	private long appended;
+	private long durable;
+	private boolean flushing;
+	private IOException failure;
+	private boolean closed;
+
+	private CounterStore(final File directory, final long compactionThreshold) throws IOException {
+		this.directory = directory;
+		this.compactionThreshold = compactionThreshold;
+		this.keys = new long[64];
+		this.values = new long[64];
+		this.durableValues = new long[64];
+		Arrays.fill(values, EMPTY);
+		Arrays.fill(durableValues, EMPTY);
+
+		loadSnapshot();
+
+		this.logFile = new RandomAccessFile(new File(directory, LOG), "rw");
+		this.log = logFile.getChannel();
+
+		try {
+			replayLog();
+		} catch (final IOException e) {
+			logFile.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Opens the store kept in the given directory, creating it if necessary, with the
+	 * {@linkplain #DEFAULT_COMPACTION_THRESHOLD default compaction threshold}.
+	 * 
+	 * @throws IOException
+	 *         if the store cannot be read or is corrupt
+	 */
+	public static CounterStore open(final File directory) throws IOException {
+		return open(directory, DEFAULT_COMPACTION_THRESHOLD);
+	}
+
+	/**
+	 * Opens the store kept in the given directory, creating it if necessary.
+	 * 
+	 * @param directory
+	 *        the directory holding the snapshot and the log
+	 * @param compactionThreshold
+	 *        the size of the log, in bytes, beyond which it is compacted into a snapshot
+	 * @throws IOException
+	 *         if the store cannot be read or is corrupt
+	 */
+	public static CounterStore open(final File directory, final long compactionThreshold)
+			throws IOException {
+
+		if (directory == null) {
+			throw new NullPointerException("directory");
+		}
+		if (compactionThreshold <= 0) {
+			throw new IllegalArgumentException("'compactionThreshold' must be positive");
+		}
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("cannot create " + directory);
+		}
+
+		return new CounterStore(directory, compactionThreshold);
+	}
+
+	/**
+	 * @return the number of accounts with a counter
+	 */
+	public int size() {
+		lock.lock();
+		try {
+			return size;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the counter of the given account as far as it is on disk, 0 if it was never advanced
+	 */
+	public long getCounter(final long account) {
+		lock.lock();
+		try {
+			final long value = durableValues[slot(account)];
+			return value == EMPTY ? 0 : value;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Advances the counter of the given account and returns once the new counter is on disk.
+	 * 
+	 * @param account
+	 *        the id of the account
+	 * @param counter
+	 *        the new counter
+	 * @return <code>true</code> if the counter was advanced, <code>false</code> if it already was
+	 *         at or beyond <code>counter</code>
+	 * @throws IOException
+	 *         if the log cannot be written; the store rejects all further advances
+	 * @throws IllegalStateException
+	 *         if the store is closed
+	 */
+	public boolean advance(final long account, final long counter) throws IOException {
+		if (counter < 0) {
+			throw new IllegalArgumentException("'counter' must not be negative");
+		}
+
+		lock.lock();
+		try {
+			if (closed) {
+				throw new IllegalStateException("closed");
+			}
+			checkFailure();
+
+			if (!put(account, counter)) {
+				return false;
+			}
+
+			record.clear();
+			record.putLong(account).putLong(counter);
+			crc.reset();
+			crc.update(record.array(), 0, 16);
+			record.putInt((int) crc.getValue());
+			record.flip();
+
+			if (pending.remaining() < RECORD_BYTES) {
+				final ByteBuffer grown = ByteBuffer.allocate(2 * pending.capacity());
+				pending.flip();
+				grown.put(pending);
+				pending = grown;
+			}
+			pending.put(record);
+
+			awaitDurable(++appended);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Validates the given password against the counters of the given account from its current
+	 * counter on, and advances the counter beyond the matching one.
+	 * 
+	 * @param password
+	 *        the password to be validated
+	 * @param otp
+	 *        the one-time password of the account
+	 * @param account
+	 *        the id of the account
+	 * @param window
+	 *        the number of counters tried, starting from the current one
+	 * @return <code>true</code> if the password is valid and its counter was consumed by this
+	 *         call, <code>false</code> if not
+	 * @throws IOException
+	 *         if the log cannot be written
+	 */
+	public boolean validate(final int password, final HmacBasedOneTimePassword otp,
+			final long account, final int window) throws IOException {
+
+		if (window <= 0) {
+			throw new IllegalArgumentException("'window' must be positive");
+		}
+
+		final long counter = getCounter(account);
+
+		for (int i = 0; i < window; ++i) {
+			if (password == otp.generatePassword(counter + i)) {
+				return advance(account, counter + i + 1);
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Writes all counters to a new snapshot and empties the log. This happens automatically once
+	 * the log exceeds the compaction threshold.
+	 * 
+	 * @throws IOException
+	 *         if the snapshot cannot be written
+	 */
+	public void compact() throws IOException {
+		lock.lock();
+		try {
+			if (closed) {
+				throw new IllegalStateException("closed");
+			}
+			while (flushing) {
+				flushed.awaitUninterruptibly();
+			}
+			checkFailure();
+			compactLocked();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits for pending advances to reach the disk and closes the log. Has no effect if already
+	 * closed.
+	 */
+	public void close() throws IOException {
+		lock.lock();
+		try {
+			if (closed) {
+				return;
+			}
+			while (durable < appended && failure == null) {
+				if (flushing) {
+					flushed.awaitUninterruptibly();
+				} else {
+					flush();
+				}
+			}
+			while (flushing) {
+				flushed.awaitUninterruptibly();
+			}
+			closed = true;
+			logFile.close();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Must be called holding the lock. Either waits for the thread currently writing the log, or
+	 * becomes that thread and writes all advances appended so far.
+	 */
+	private void awaitDurable(final long sequence) throws IOException {
+		while (durable < sequence) {
+			checkFailure();
+
+			if (flushing) {
+				flushed.awaitUninterruptibly();
+			} else {
+				flush();
+			}
+		}
+	}
+
+	/**
+	 * Must be called holding the lock while not flushing. Releases the lock while writing.
+	 */
+	private void flush() throws IOException {
+		final ByteBuffer batch = pending;
+		final long last = appended;
+
+		pending = spare;
+		spare = null;
+		flushing = true;
+
+		IOException error = null;
+		lock.unlock();
+		try {
+			batch.flip();
+			while (batch.hasRemaining()) {
+				log.write(batch);
+			}
+			log.force(false);
+		} catch (final IOException e) {
+			error = e;
+		} finally {
+			lock.lock();
+		}
+
+		logBytes += batch.limit();
+		flushing = false;
+
+		if (error != null) {
+			failure = error;
+		} else {
+			for (int i = 0; i < batch.limit(); i += RECORD_BYTES) {
+				commit(batch.getLong(i), batch.getLong(i + 8));
+			}
+			durable = last;
+		}
+		batch.clear();
+		spare = batch;
+
+		if (error == null && logBytes > compactionThreshold) {
+			try {
+				compactLocked();
+			} catch (final IOException e) {
+				failure = e;
+			}
+		}
+
+		flushed.signalAll();
+		checkFailure();
+	}
+
+	/**
+	 * Must be called holding the lock while not flushing. Releases the lock while writing.
+	 */
+	private void compactLocked() throws IOException {
+		final long[] snapshotKeys = new long[size];
+		final long[] snapshotValues = new long[size];
+
+		int count = 0;
+		for (int i = 0; i < durableValues.length; ++i) {
+			if (durableValues[i] != EMPTY) {
+				snapshotKeys[count] = keys[i];
+				snapshotValues[count++] = durableValues[i];
+			}
+		}
+
+		flushing = true;
+		lock.unlock();
+		try {
+			writeSnapshot(snapshotKeys, snapshotValues, count);
+			++generation;
+
+			// everything in the log is now covered by the snapshot
+			log.truncate(0);
+			log.position(0);
+			log.force(true);
+		} finally {
+			lock.lock();
+			flushing = false;
+			flushed.signalAll();
+		}
+
+		logBytes = 0;
+	}
+
+	/**
+	 * Writes the snapshot of the next generation over the older of the two snapshot files.
+	 */
+	private void writeSnapshot(final long[] accounts, final long[] counters, final int count)
+			throws IOException {
+
+		final long next = generation + 1;
+
+		final ByteBuffer buffer = ByteBuffer.allocate(SNAPSHOT_HEADER_BYTES + 16 * count + 4);
+		buffer.putInt(SNAPSHOT_MAGIC).putLong(next).putInt(count);
+		for (int i = 0; i < count; ++i) {
+			buffer.putLong(accounts[i]).putLong(counters[i]);
+		}
+
+		final CRC32 checksum = new CRC32();
+		checksum.update(buffer.array(), 0, buffer.position());
+		buffer.putInt((int) checksum.getValue());
+		buffer.flip();
+
+		final RandomAccessFile file = new RandomAccessFile(new File(directory, SNAPSHOTS[(int) (next & 1)]), "rw");
+		try {
+			file.setLength(0);
+			final FileChannel channel = file.getChannel();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(true);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Loads the newest complete snapshot, if any, and creates missing snapshot files, so that
+	 * compacting never needs to create a file.
+	 */
+	private void loadSnapshot() throws IOException {
+		ByteBuffer newest = null;
+
+		for (int i = 0; i < SNAPSHOTS.length; ++i) {
+			final File snapshot = new File(directory, SNAPSHOTS[i]);
+			final RandomAccessFile file = new RandomAccessFile(snapshot, "rw");
+			try {
+				if (file.length() == 0) {
+					// new store: make the empty file durable now
+					file.getChannel().force(true);
+					continue;
+				}
+
+				final ByteBuffer buffer = readSnapshot(file);
+				if (buffer != null && (newest == null || buffer.getLong(4) > newest.getLong(4))) {
+					newest = buffer;
+				}
+			} finally {
+				file.close();
+			}
+		}
+
+		if (newest != null) {
+			generation = newest.getLong(4);
+
+			final int count = newest.getInt(12);
+			newest.position(SNAPSHOT_HEADER_BYTES);
+			for (int i = 0; i < count; ++i) {
+				restore(newest.getLong(), newest.getLong());
+			}
+		}
+	}
+
+	/**
+	 * @return the snapshot, or <code>null</code> if it is torn or corrupt. Such a snapshot was
+	 *         being written when the process crashed, and the log still holds all it contains.
+	 */
+	private static ByteBuffer readSnapshot(final RandomAccessFile file) throws IOException {
+		final long length = file.length();
+		if (length < SNAPSHOT_HEADER_BYTES + 4 || length > Integer.MAX_VALUE) {
+			return null;
+		}
+
+		final byte[] bytes = new byte[(int) length];
+		file.readFully(bytes);
+
+		final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		final int count = buffer.getInt(12);
+		final CRC32 checksum = new CRC32();
+		checksum.update(bytes, 0, bytes.length - 4);
+
+		if (buffer.getInt(0) != SNAPSHOT_MAGIC || count < 0
+				|| length != SNAPSHOT_HEADER_BYTES + 16L * count + 4
+				|| (int) checksum.getValue() != buffer.getInt(bytes.length - 4)) {
+			return null;
+		}
+
+		return buffer;
+	}
+
+	private void replayLog() throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate(1024 * RECORD_BYTES);
+		long valid = 0;
+
+		log.position(0);
+		replay: while (log.read(buffer) > 0 || buffer.position() > 0) {
+			buffer.flip();
+
+			while (buffer.remaining() >= RECORD_BYTES) {
+				final long account = buffer.getLong(buffer.position());
+				final long counter = buffer.getLong(buffer.position() + 8);
+				if (!isValidRecord(buffer)) {
+					break replay;
+				}
+
+				restore(account, counter);
+				valid += RECORD_BYTES;
+			}
+
+			if (buffer.hasRemaining() && log.position() == log.size()) {
+				break;
+			}
+			buffer.compact();
+		}
+
+		if (valid < log.size()) {
+			// a torn tail, left by a crash while writing, was never acknowledged, but a bad record
+			// followed by good ones means that acknowledged advances would be lost
+			if (containsValidRecord(valid + RECORD_BYTES)) {
+				throw new IOException("corrupt record at byte " + valid + " of " + new File(directory, LOG));
+			}
+			log.truncate(valid);
+			log.force(true);
+		}
+		log.position(valid);
+		logBytes = valid;
+	}
+
+	/**
+	 * @return whether a complete record with a valid checksum starts at or after the given
+	 *         position of the log, at a multiple of the record length
+	 */
+	private boolean containsValidRecord(final long position) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate(1024 * RECORD_BYTES);
+
+		log.position(position);
+		while (log.read(buffer) > 0) {
+			buffer.flip();
+			while (buffer.remaining() >= RECORD_BYTES) {
+				if (isValidRecord(buffer)) {
+					return true;
+				}
+			}
+			buffer.compact();
+		}
+
+		return false;
+	}
+
+	/**
+	 * Consumes the record at the position of the given buffer.
+	 * 
+	 * @return whether the record's checksum matches and its counter is not negative
+	 */
+	private boolean isValidRecord(final ByteBuffer buffer) {
+		crc.reset();
+		crc.update(buffer.array(), buffer.position(), 16);
+
+		buffer.getLong();
+		final long counter = buffer.getLong();
+		return (int) crc.getValue() == buffer.getInt() && counter >= 0;
+	}
+
+	private void checkFailure() throws IOException {
+		if (failure != null) {
+			throw new IOException("counter log failed", failure);
+		}
+	}
+
+	/**
+	 * Sets both the newest and the durable counter of an account read back from disk.
+	 */
+	private void restore(final long account, final long counter) {
+		put(account, counter);
+		commit(account, counter);
+	}
+
+	/**
+	 * Sets the durable counter of an account, which {@link #put(long, long)} has already set, unless
+	 * it already is at or beyond the given counter.
+	 */
+	private void commit(final long account, final long counter) {
+		final int slot = slot(account);
+
+		if (durableValues[slot] < counter) {
+			durableValues[slot] = counter;
+		}
+	}
+
+	/**
+	 * Sets the newest counter of an account unless it already is at or beyond the given counter.
+	 */
+	private boolean put(final long account, final long counter) {
+		int slot = slot(account);
+
+		if (values[slot] == EMPTY) {
+			if (2 * (size + 1) > keys.length) {
+				grow();
+				slot = slot(account);
+			}
+			keys[slot] = account;
+			values[slot] = counter;
+			++size;
+			return true;
+		}
+
+		if (values[slot] >= counter) {
+			return false;
+		}
+		values[slot] = counter;
+		return true;
+	}
+
+	/**
+	 * @return the slot holding the given account, or the empty slot where it belongs
+	 */
+	private int slot(final long account) {
+		final int mask = keys.length - 1;
+		int slot = (int) ((account * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+
+		while (values[slot] != EMPTY && keys[slot] != account) {
+			slot = (slot + 1) & mask;
+		}
+
+		return slot;
+	}
+
+	private void grow() {
+		final long[] oldKeys = keys;
+		final long[] oldValues = values;
+		final long[] oldDurableValues = durableValues;
+
+		keys = new long[2 * oldKeys.length];
+		values = new long[2 * oldValues.length];
+		durableValues = new long[2 * oldDurableValues.length];
+		Arrays.fill(values, EMPTY);
+		Arrays.fill(durableValues, EMPTY);
+
+		for (int i = 0; i < oldKeys.length; ++i) {
+			if (oldValues[i] != EMPTY) {
+				final int slot = slot(oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+				durableValues[slot] = oldDurableValues[i];
+			}
+		}
+	}
+}
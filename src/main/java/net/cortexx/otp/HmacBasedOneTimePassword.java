@@ -15,15 +15,8 @@
  */
 package net.cortexx.otp;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
-
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
 
 /**
  * Generates HMAC-based one-time passwords according to
@@ -31,41 +24,114 @@ import javax.crypto.spec.SecretKeySpec;
  * This type is thread-safe.
  * <p>
  * This class is designed to be reused per secret to generate passwords from.
+ * <p>
+ * Passwords are computed by the {@link HmacEngine} that {@link HmacEngines} selects for the
+ * algorithm. The pure-Java HMACs need no locking and allocate nothing. If a JCA
+ * {@link javax.crypto.Mac} is selected instead, concurrent callers sharing an instance are
+ * serialized by default. Instances created with a concurrency level greater than one then hold
+ * that many copies of the initialized {@link javax.crypto.Mac}, each guarded by its own lock, and
+ * spread callers across them by thread.
  */
 public final class HmacBasedOneTimePassword {
 	public enum Algorithm {
 		SHA1, SHA256, SHA512
 	}
 
-	private final Lock lock = new ReentrantLock();
-	private final Mac mac;
+	/**
+	 * Receives the truncated hashes of one chunk of a batch generated as ASCII digits.
+	 */
+	private static final ThreadLocal<int[]> HASHES = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[64];
+		}
+	};
+
+	private final HmacEngine engine;
+	private final int digits;
 	private final int truncation;
 
+	/**
+	 * @return the number of digits of the passwords generated by this instance
+	 */
+	public final int getNumberOfDigits() {
+		return digits;
+	}
+
 	/**
 	 * Generates the password corresponding to the given counter.
 	 */
 	public final int generatePassword(final long counter) {
-		final byte[] counterBytes = ByteBuffer.allocate(8)
-				.order(ByteOrder.BIG_ENDIAN)
-				.putLong(counter)
-				.array();
+		return engine.truncatedHash(counter) % truncation;
+	}
+
+	/**
+	 * Generates the passwords corresponding to the counters
+	 * <code>firstCounter..firstCounter + length</code> in one pass.
+	 * 
+	 * @param firstCounter
+	 *        the counter of the first password
+	 * @param passwords
+	 *        receives the password of counter <code>firstCounter + i</code> at
+	 *        <code>offset + i</code>
+	 * @param offset
+	 *        the index in <code>passwords</code> of the first password
+	 * @param length
+	 *        the number of passwords to generate
+	 */
+	public final void generatePasswords(final long firstCounter,
+			final int[] passwords, final int offset, final int length) {
+
+		if (passwords == null) {
+			throw new NullPointerException("passwords");
+		}
+		if (offset < 0 || length < 0 || length > passwords.length - offset) {
+			throw new IndexOutOfBoundsException();
+		}
+
+		engine.truncatedHashes(firstCounter, passwords, offset, length);
+
+		for (int i = offset; i < offset + length; ++i) {
+			passwords[i] %= truncation;
+		}
+	}
 
-		final byte[] hash;
+	/**
+	 * Generates the passwords corresponding to the counters
+	 * <code>firstCounter..firstCounter + count</code> in one pass as ASCII digits, filling each
+	 * with leading zeros if necessary.
+	 * 
+	 * @param firstCounter
+	 *        the counter of the first password
+	 * @param passwords
+	 *        receives the password of counter <code>firstCounter + i</code> as the number of
+	 *        digits this instance was created with, starting at
+	 *        <code>offset + i * numberOfDigits</code>
+	 * @param offset
+	 *        the index in <code>passwords</code> of the first digit of the first password
+	 * @param count
+	 *        the number of passwords to generate
+	 */
+	public final void generatePasswords(final long firstCounter,
+			final byte[] passwords, final int offset, final int count) {
 
-		lock.lock();
-		try {
-			hash = mac.doFinal(counterBytes);
-		} finally {
-			lock.unlock();
+		if (passwords == null) {
+			throw new NullPointerException("passwords");
 		}
+		if (offset < 0 || offset > passwords.length || count < 0 || count > (passwords.length - offset) / digits) {
+			throw new IndexOutOfBoundsException();
+		}
+
+		final int[] hashes = HASHES.get();
 
-		final int offset = hash[19] & 0x0F;
-		final int truncatedHash = ((ByteBuffer) ByteBuffer.wrap(hash)
-				.order(ByteOrder.BIG_ENDIAN)
-				.position(offset))
-				.getInt() & 0x7FFFFFFF;
+		for (int done = 0; done < count; done += hashes.length) {
+			final int chunk = Math.min(hashes.length, count - done);
+			engine.truncatedHashes(firstCounter + done, hashes, 0, chunk);
 
-		return truncatedHash % truncation;
+			for (int i = 0; i < chunk; ++i) {
+				format(hashes[i] % truncation, passwords, offset + (done + i) * digits);
+			}
+		}
 	}
 
 	/**
@@ -73,15 +139,123 @@ public final class HmacBasedOneTimePassword {
 	 * filling the string with leading zeros if necessary.
 	 */
 	public String generatePasswordString(final long counter) {
+		final char[] textPassword = new char[digits];
+		format(generatePassword(counter), textPassword, 0);
+
+		return new String(textPassword);
+	}
+
+	/**
+	 * Writes the password corresponding to the given counter as decimal digits,
+	 * filling it with leading zeros if necessary.
+	 * 
+	 * @param destination
+	 *        receives the digits
+	 * @param offset
+	 *        the index of the first digit in <code>destination</code>
+	 * @return the number of digits written, which is always {@link #getNumberOfDigits()}
+	 */
+	public final int writePassword(final long counter, final char[] destination, final int offset) {
+		if (destination == null) {
+			throw new NullPointerException("destination");
+		}
+		if (offset < 0 || digits > destination.length - offset) {
+			throw new IndexOutOfBoundsException();
+		}
+
+		format(generatePassword(counter), destination, offset);
+		return digits;
+	}
+
+	/**
+	 * Writes the password corresponding to the given counter as ASCII digits,
+	 * filling it with leading zeros if necessary.
+	 * 
+	 * @param destination
+	 *        receives the digits
+	 * @param offset
+	 *        the index of the first digit in <code>destination</code>
+	 * @return the number of bytes written, which is always {@link #getNumberOfDigits()}
+	 */
+	public final int writePassword(final long counter, final byte[] destination, final int offset) {
+		if (destination == null) {
+			throw new NullPointerException("destination");
+		}
+		if (offset < 0 || digits > destination.length - offset) {
+			throw new IndexOutOfBoundsException();
+		}
+
+		format(generatePassword(counter), destination, offset);
+		return digits;
+	}
+
+	/**
+	 * Writes the password corresponding to the given counter as ASCII digits,
+	 * filling it with leading zeros if necessary.
+	 * The position and limit of the buffer are not modified.
+	 * 
+	 * @param destination
+	 *        receives the digits
+	 * @param offset
+	 *        the absolute index of the first digit in <code>destination</code>
+	 * @return the number of bytes written, which is always {@link #getNumberOfDigits()}
+	 */
+	public final int writePassword(final long counter, final ByteBuffer destination, final int offset) {
+		if (destination == null) {
+			throw new NullPointerException("destination");
+		}
+		if (offset < 0 || digits > destination.limit() - offset) {
+			throw new IndexOutOfBoundsException();
+		}
+
+		int password = generatePassword(counter);
+		for (int i = offset + digits - 1; i >= offset; --i) {
+			destination.put(i, (byte) ('0' + password % 10));
+			password /= 10;
+		}
+		return digits;
+	}
+
+	/**
+	 * Appends the password corresponding to the given counter as decimal digits,
+	 * filling it with leading zeros if necessary.
+	 * 
+	 * @param destination
+	 *        receives the digits
+	 * @return the number of digits appended, which is always {@link #getNumberOfDigits()}
+	 * @throws IOException
+	 *         if thrown by <code>destination</code>
+	 */
+	public final int writePassword(final long counter, final Appendable destination) throws IOException {
+		if (destination == null) {
+			throw new NullPointerException("destination");
+		}
+
 		final int password = generatePassword(counter);
-		final StringBuilder textPassword = new StringBuilder(8);
+		for (int divisor = truncation / 10; divisor > 0; divisor /= 10) {
+			destination.append((char) ('0' + password / divisor % 10));
+		}
+		return digits;
+	}
 
-		for (int i = truncation / 10; i > password && i > 1; i /= 10) {
-			textPassword.append('0');
+	/**
+	 * Writes the given password as {@link #digits} ASCII digits starting at <code>offset</code>.
+	 */
+	private void format(int password, final byte[] destination, final int offset) {
+		for (int i = offset + digits - 1; i >= offset; --i) {
+			destination[i] = (byte) ('0' + password % 10);
+			password /= 10;
 		}
-		textPassword.append(password);
+	}
 
-		return textPassword.toString();
+	/**
+	 * Writes the given password as {@link #digits} decimal digits starting at <code>offset</code>.
+	 */
+	private void format(int password, final char[] destination, final int offset) {
+		for (int i = offset + digits - 1; i >= offset; --i) {
+			destination[i] = (char) ('0' + password % 10);
+			password /= 10;
+		}
 	}
 
 	/**
@@ -94,6 +268,24 @@ public final class HmacBasedOneTimePassword {
 	 *        the secret to use for hashing
 	 */
 	public HmacBasedOneTimePassword(final Algorithm algorithm, final int numberOfDigits, final byte... secret) {
+		this(algorithm, numberOfDigits, 1, secret);
+	}
+
+	/**
+	 * @param algorithm
+	 *        the algorithm to use for hashing. The algorithm originally defined by RFC 4226 is
+	 *        SHA1.
+	 * @param numberOfDigits
+	 *        the number of digits returned by {@link #generatePassword(long)}
+	 * @param concurrencyLevel
+	 *        the number of threads expected to generate passwords from this instance at the same
+	 *        time, e.g. {@link Runtime#availableProcessors()}. Each additional level costs one copy
+	 *        of the initialized {@link javax.crypto.Mac}. Ignored by the pure-Java HMACs.
+	 * @param secret
+	 *        the secret to use for hashing
+	 */
+	public HmacBasedOneTimePassword(final Algorithm algorithm, final int numberOfDigits,
+			final int concurrencyLevel, final byte... secret) {
 		if (algorithm == null) {
 			throw new NullPointerException("algorithm");
 		}
@@ -103,28 +295,29 @@ public final class HmacBasedOneTimePassword {
 		if (secret.length == 0) {
 			throw new IllegalArgumentException("'secret' must contain at least one byte");
 		}
+		if (concurrencyLevel <= 0) {
+			throw new IllegalArgumentException("'concurrencyLevel' must be positive");
+		}
 
-		try {
-			final SecretKeySpec key = new SecretKeySpec(secret, "raw");
+		engine = HmacEngines.create(algorithm, concurrencyLevel, secret);
 
-			mac = Mac.getInstance("hmac" + algorithm);
-			mac.init(key);
-		} catch (NoSuchAlgorithmException e) {
-			throw new IllegalStateException(e);
-		} catch (InvalidKeyException e) {
-			throw new IllegalStateException(e);
-		}
+		truncation = truncation(numberOfDigits);
+		digits = numberOfDigits;
+	}
 
+	/**
+	 * @return the modulus reducing a truncated hash to the given number of digits
+	 * @throws IllegalArgumentException
+	 *         if the number of digits is not supported
+	 */
+	static int truncation(final int numberOfDigits) {
 		switch (numberOfDigits) {
 		case 6:
-			truncation = 1000000;
-			break;
+			return 1000000;
 		case 7:
-			truncation = 10000000;
-			break;
+			return 10000000;
 		case 8:
-			truncation = 100000000;
-			break;
+			return 100000000;
 		default:
 			throw new IllegalArgumentException("'numberOfDigits' must be in the range [6..8]");
 		}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2013 Patrick Kelchner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.cortexx.otp;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.cortexx.otp.HmacBasedOneTimePassword.Algorithm;
+
+/**
+ * Generates HMAC-based one-time passwords according to
+ * <a href="http://tools.ietf.org/html/rfc4226">RFC 4226</a> for many accounts sharing one
+ * algorithm and number of digits.
+ * This type is thread-safe.
+ * <p>
+ * Where an {@link HmacBasedOneTimePassword} holds an engine per secret, this table keeps only
+ * the precomputed HMAC midstates of each account in one flat primitive array: 40 bytes per
+ * account for SHA1, 64 for SHA256 and 128 for SHA512. Passwords are computed on demand by the
+ * pure-Java HMACs from any account's midstate, using working memory kept per thread. Millions of
+ * accounts thus stay resident in tens of megabytes.
+ * <p>
+ * Accounts are identified by the index returned when adding them. Secrets are never stored and
+ * cannot be replaced; to change an account's secret, add it anew.
+ */
+public final class HmacBasedOneTimePasswordTable implements OneTimePasswordTable {
+	private final Algorithm algorithm;
+	private final int digits;
+	private final int truncation;
+	private final int stride;
+
+	private final Lock lock = new ReentrantLock();
+	private volatile int[] intStates;
+	private volatile long[] longStates;
+	private volatile int size;
+
+	/**
+	 * @param algorithm
+	 *        the algorithm to use for hashing
+	 * @param numberOfDigits
+	 *        the number of digits returned by {@link #generatePassword(int, long)}
+	 * @param initialCapacity
+	 *        the number of accounts to reserve memory for
+	 */
+	public HmacBasedOneTimePasswordTable(final Algorithm algorithm, final int numberOfDigits,
+			final int initialCapacity) {
+
+		if (algorithm == null) {
+			throw new NullPointerException("algorithm");
+		}
+		if (initialCapacity < 0) {
+			throw new IllegalArgumentException("'initialCapacity' must not be negative");
+		}
+
+		this.algorithm = algorithm;
+		this.digits = numberOfDigits;
+		this.truncation = HmacBasedOneTimePassword.truncation(numberOfDigits);
+
+		switch (algorithm) {
+		case SHA1:
+			stride = HmacSha1.STATE_INTS;
+			intStates = new int[initialCapacity * stride];
+			break;
+		case SHA256:
+			stride = HmacSha256.STATE_INTS;
+			intStates = new int[initialCapacity * stride];
+			break;
+		case SHA512:
+			stride = HmacSha512.STATE_LONGS;
+			longStates = new long[initialCapacity * stride];
+			break;
+		default:
+			throw new IllegalArgumentException(String.valueOf(algorithm));
+		}
+	}
+
+	/**
+	 * @return the algorithm used for hashing
+	 */
+	public Algorithm getAlgorithm() {
+		return algorithm;
+	}
+
+	/**
+	 * @return the number of digits of the passwords generated by this table
+	 */
+	public int getNumberOfDigits() {
+		return digits;
+	}
+
+	public int getNumberOfDigits(final int account) {
+		offset(account);
+		return digits;
+	}
+
+	/**
+	 * @return the number of accounts
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Adds an account.
+	 * 
+	 * @param secret
+	 *        the secret of the account, which is not retained
+	 * @return the index identifying the account
+	 */
+	public int add(final byte... secret) {
+		if (secret == null) {
+			throw new NullPointerException("secret");
+		}
+		if (secret.length == 0) {
+			throw new IllegalArgumentException("'secret' must contain at least one byte");
+		}
+
+		lock.lock();
+		try {
+			final int account = size;
+			final int offset = account * stride;
+
+			if (algorithm == Algorithm.SHA512) {
+				long[] states = longStates;
+				if (offset + stride > states.length) {
+					final long[] grown = new long[Math.max(2 * states.length, offset + stride)];
+					System.arraycopy(states, 0, grown, 0, offset);
+					states = grown;
+				}
+				HmacSha512.midstate(secret, states, offset);
+				longStates = states;
+			} else {
+				int[] states = intStates;
+				if (offset + stride > states.length) {
+					final int[] grown = new int[Math.max(2 * states.length, offset + stride)];
+					System.arraycopy(states, 0, grown, 0, offset);
+					states = grown;
+				}
+				if (algorithm == Algorithm.SHA1) {
+					HmacSha1.midstate(secret, states, offset);
+				} else {
+					HmacSha256.midstate(secret, states, offset);
+				}
+				intStates = states;
+			}
+
+			size = account + 1;
+			return account;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int generatePassword(final int account, final long counter) {
+		return truncatedHash(offset(account), counter) % truncation;
+	}
+
+	/**
+	 * Generates the passwords of the given account corresponding to the counters
+	 * <code>firstCounter..firstCounter + length</code> in one pass.
+	 * 
+	 * @see HmacBasedOneTimePassword#generatePasswords(long, int[], int, int)
+	 */
+	public void generatePasswords(final int account, final long firstCounter,
+			final int[] passwords, final int offset, final int length) {
+
+		if (passwords == null) {
+			throw new NullPointerException("passwords");
+		}
+		if (offset < 0 || length < 0 || length > passwords.length - offset) {
+			throw new IndexOutOfBoundsException();
+		}
+
+		final int state = offset(account);
+		for (int i = 0; i < length; ++i) {
+			passwords[offset + i] = truncatedHash(state, firstCounter + i) % truncation;
+		}
+	}
+
+	/**
+	 * @return the offset of the midstate of the given account
+	 */
+	private int offset(final int account) {
+		if (account < 0 || account >= size) {
+			throw new IndexOutOfBoundsException("account " + account);
+		}
+		return account * stride;
+	}
+
+	private int truncatedHash(final int state, final long counter) {
+		switch (algorithm) {
+		case SHA1:
+			return HmacSha1.truncatedHash(intStates, state, counter, HmacSha1.SCRATCH.get());
+		case SHA256:
+			return HmacSha256.truncatedHash(intStates, state, counter, HmacSha256.SCRATCH.get());
+		default:
+			return HmacSha512.truncatedHash(longStates, state, counter, HmacSha512.SCRATCH.get());
+		}
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2013 Patrick Kelchner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.cortexx.otp;
+
+/**
+ * Computes the dynamically truncated HMAC of a counter for one secret, as defined in section
+ * 5.3 of <a href="http://tools.ietf.org/html/rfc4226#section-5.3">RFC 4226</a>.
+ * Implementations must be thread-safe.
+ * <p>
+ * This is the service provider interface behind {@link HmacBasedOneTimePassword}. Engines are
+ * created by an {@link HmacEngineProvider}, which is selected per algorithm by
+ * {@link HmacEngines}.
+ */
+public abstract class HmacEngine {
+	/**
+	 * @return the 31 bits selected by dynamic truncation of the HMAC of the given counter, encoded
+	 *         as an 8-byte big-endian value.
+	 * @see #truncate(byte[], int, int)
+	 */
+	protected abstract int truncatedHash(long counter);
+
+	/**
+	 * Computes {@link #truncatedHash(long)} for the counters
+	 * <code>firstCounter..firstCounter + length</code> into
+	 * <code>hashes[offset..offset + length)</code>.
+	 * <p>
+	 * Engines should override this if they can amortize work over several counters.
+	 */
+	protected void truncatedHashes(final long firstCounter, final int[] hashes, final int offset, final int length) {
+		for (int i = 0; i < length; ++i) {
+			hashes[offset + i] = truncatedHash(firstCounter + i);
+		}
+	}
+
+	/**
+	 * Applies dynamic truncation to the big-endian hash in
+	 * <code>hash[offset..offset + length)</code>, taking the offset from its last byte.
+	 */
+	protected static int truncate(final int[] hash, final int offset, final int length) {
+		final int byteOffset = hash[offset + length - 1] & 0x0F;
+		final int word = offset + (byteOffset >>> 2);
+		final int shift = (byteOffset & 3) << 3;
+
+		final int bits = shift == 0
+				? hash[word]
+				: hash[word] << shift | hash[word + 1] >>> (32 - shift);
+
+		return bits & 0x7FFFFFFF;
+	}
+
+	/**
+	 * Applies dynamic truncation to the big-endian hash in
+	 * <code>hash[offset..offset + length)</code>, taking the offset from its last byte.
+	 */
+	protected static int truncate(final long[] hash, final int offset, final int length) {
+		final int byteOffset = (int) hash[offset + length - 1] & 0x0F;
+		final int word = offset + (byteOffset >>> 3);
+		final int shift = (byteOffset & 7) << 3;
+
+		final long bits = shift == 0
+				? hash[word]
+				: hash[word] << shift | hash[word + 1] >>> (64 - shift);
+
+		return (int) (bits >>> 32) & 0x7FFFFFFF;
+	}
+
+	/**
+	 * Applies dynamic truncation to the hash in <code>hash[offset..offset + length)</code>, taking
+	 * the offset from its last byte.
+	 */
+	protected static int truncate(final byte[] hash, final int offset, final int length) {
+		final int i = offset + (hash[offset + length - 1] & 0x0F);
+
+		return (hash[i] & 0x7F) << 24
+				| (hash[i + 1] & 0xFF) << 16
+				| (hash[i + 2] & 0xFF) << 8
+				| (hash[i + 3] & 0xFF);
+	}
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2013 Patrick Kelchner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.cortexx.otp;
+
+import net.cortexx.otp.HmacBasedOneTimePassword.Algorithm;
+
+/**
+ * Creates {@link HmacEngine}s of one HMAC implementation.
+ * Implementations must be thread-safe.
+ * <p>
+ * Providers are made known to {@link HmacEngines} either through
+ * {@link HmacEngines#register(HmacEngineProvider)} or by listing them in
+ * <code>META-INF/services/net.cortexx.otp.HmacEngineProvider</code>, in which case they need a
+ * public no-argument constructor.
+ */
+public abstract class HmacEngineProvider {
+	/**
+	 * @return the unique name of this provider, used to select it explicitly
+	 */
+	public abstract String getName();
+
+	/**
+	 * @return whether this provider can be used in the current environment, e.g. whether a native
+	 *         library it depends on is present. The default implementation returns
+	 *         <code>true</code>.
+	 */
+	public boolean isAvailable() {
+		return true;
+	}
+
+	/**
+	 * @return whether this provider can create engines for the given algorithm
+	 */
+	public abstract boolean supports(Algorithm algorithm);
+
+	/**
+	 * Creates an engine for the given algorithm and secret.
+	 * 
+	 * @param concurrencyLevel
+	 *        the number of threads expected to use the engine at the same time, see
+	 *        {@link HmacBasedOneTimePassword#HmacBasedOneTimePassword(Algorithm, int, int, byte...)}
+	 * @param secret
+	 *        the secret, which must not be retained by the engine
+	 */
+	public abstract HmacEngine createEngine(Algorithm algorithm, int concurrencyLevel, byte[] secret);
+
+	@Override
+	public String toString() {
+		return getName();
+	}
+}
@@ -0,0 +1,421 @@
+/*
+ * Copyright 2013 Patrick Kelchner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.cortexx.otp;
+
+import java.security.Provider;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.cortexx.otp.HmacBasedOneTimePassword.Algorithm;
+
+/**
+ * Selects the {@link HmacEngineProvider} used by {@link HmacBasedOneTimePassword} per algorithm.
+ * This type is thread-safe.
+ * <p>
+ * The candidates are:
+ * <ul>
+ * <li><code>java</code>, the pure-Java HMACs computing from precomputed midstates without
+ * locking,</li>
+ * <li><code>jca</code>, the JCA {@link javax.crypto.Mac} of the first provider supporting the
+ * algorithm,</li>
+ * <li><code>jca:&lt;provider&gt;</code>, the JCA {@link javax.crypto.Mac} of each installed
+ * security provider supporting the algorithm, and</li>
+ * <li>every provider listed in <code>META-INF/services/net.cortexx.otp.HmacEngineProvider</code>
+ * or passed to {@link #register(HmacEngineProvider)}.</li>
+ * </ul>
+ * The first time an algorithm is used, a short calibration warms up and times every available
+ * candidate supporting it. A preferred engine, <code>jca</code> for SHA-1 and SHA-256 and
+ * <code>java</code> for SHA-512, is kept unless another candidate is faster by at least
+ * {@value #CALIBRATION_MARGIN_PERCENT} percent, about the noise of such a short measurement, so
+ * that engines within the noise of each other do not swap places from one run to the next.
+ * <p>
+ * The choice can be overridden for all algorithms with the system property
+ * {@value #ENGINE_PROPERTY}, per algorithm with the system property {@value #ENGINE_PROPERTY}
+ * followed by a dot and the name of the algorithm, e.g. <code>net.cortexx.otp.engine.SHA256</code>,
+ * or with {@link #pin(Algorithm, String)}. To make a calibrated choice reproducible, persist the
+ * name of {@link #getProvider(Algorithm)} and pass it back through either.
+ * {@link #getDiagnostics()} reports the choices and how they were made.
+ */
+public final class HmacEngines {
+	/**
+	 * The system property naming the provider to use for all algorithms it supports. Suffixed
+	 * with a dot and the name of an algorithm, it names the provider for that algorithm only.
+	 */
+	public static final String ENGINE_PROPERTY = "net.cortexx.otp.engine";
+
+	/** Enough calls to have the engines compiled before they are timed. */
+	private static final int CALIBRATION_WARMUP = 20000;
+	private static final int CALIBRATION_ROUNDS = 10;
+	private static final int CALIBRATION_ITERATIONS = 2000;
+	/** How much faster than the preferred engine another engine must be to be selected. */
+	private static final int CALIBRATION_MARGIN_PERCENT = 10;
+	private static final String JAVA_ENGINE = "java";
+	private static final String JCA_ENGINE = "jca";
+	private static final AtomicInteger SINK = new AtomicInteger();
+
+	private static final List<HmacEngineProvider> providers =
+			new CopyOnWriteArrayList<HmacEngineProvider>();
+	private static final Map<Algorithm, HmacEngineProvider> selection =
+			new EnumMap<Algorithm, HmacEngineProvider>(Algorithm.class);
+	private static final Map<Algorithm, String> reasons =
+			new EnumMap<Algorithm, String>(Algorithm.class);
+	private static final Map<Algorithm, Boolean> pinned =
+			new EnumMap<Algorithm, Boolean>(Algorithm.class);
+
+	/** Why loading the providers listed as services failed, or <code>null</code>. */
+	private static String serviceFailure;
+
+	static {
+		providers.add(new HmacEngineProvider() {
+			@Override
+			public String getName() {
+				return JAVA_ENGINE;
+			}
+
+			@Override
+			public boolean supports(final Algorithm algorithm) {
+				return true;
+			}
+
+			@Override
+			public HmacEngine createEngine(final Algorithm algorithm, final int concurrencyLevel,
+					final byte[] secret) {
+
+				switch (algorithm) {
+				case SHA1:
+					return new HmacSha1(secret);
+				case SHA256:
+					return new HmacSha256(secret);
+				case SHA512:
+					return new HmacSha512(secret);
+				default:
+					throw new IllegalArgumentException(String.valueOf(algorithm));
+				}
+			}
+		});
+
+		providers.add(new JcaProvider(JCA_ENGINE, null));
+		for (final Provider provider : Security.getProviders()) {
+			final JcaProvider candidate = new JcaProvider("jca:" + provider.getName(), provider);
+			for (final Algorithm algorithm : Algorithm.values()) {
+				if (candidate.supports(algorithm)) {
+					providers.add(candidate);
+					break;
+				}
+			}
+		}
+
+		try {
+			final Iterator<HmacEngineProvider> services = ServiceLoader.load(
+					HmacEngineProvider.class, HmacEngines.class.getClassLoader()).iterator();
+			while (services.hasNext()) {
+				providers.add(services.next());
+			}
+		} catch (ServiceConfigurationError e) {
+			// keep the providers loaded so far; the error shows up in the diagnostics
+			serviceFailure = "service loading failed: " + e.getMessage();
+		}
+	}
+
+	/**
+	 * Adds a provider to the candidates. Algorithms that are not pinned are calibrated anew the
+	 * next time they are used.
+	 */
+	public static synchronized void register(final HmacEngineProvider provider) {
+		if (provider == null) {
+			throw new NullPointerException("provider");
+		}
+
+		providers.add(provider);
+
+		for (final Algorithm algorithm : Algorithm.values()) {
+			if (!Boolean.TRUE.equals(pinned.get(algorithm))) {
+				selection.remove(algorithm);
+			}
+		}
+	}
+
+	/**
+	 * Pins the provider with the given name for the given algorithm, overriding calibration and
+	 * the system property. Affects instances of {@link HmacBasedOneTimePassword} created from now
+	 * on.
+	 * 
+	 * @throws IllegalArgumentException
+	 *         if there is no available provider of that name supporting the algorithm
+	 */
+	public static synchronized void pin(final Algorithm algorithm, final String name) {
+		if (algorithm == null) {
+			throw new NullPointerException("algorithm");
+		}
+
+		final HmacEngineProvider provider = find(algorithm, name);
+		if (provider == null) {
+			throw new IllegalArgumentException("no available HMAC engine '" + name + "' supports " + algorithm);
+		}
+
+		selection.put(algorithm, provider);
+		reasons.put(algorithm, "pinned");
+		pinned.put(algorithm, Boolean.TRUE);
+	}
+
+	/**
+	 * Reverts {@link #pin(Algorithm, String)}, selecting the provider for the given algorithm anew
+	 * the next time it is used.
+	 */
+	public static synchronized void unpin(final Algorithm algorithm) {
+		selection.remove(algorithm);
+		reasons.remove(algorithm);
+		pinned.remove(algorithm);
+	}
+
+	/**
+	 * @return the provider used for the given algorithm, selecting it first if necessary
+	 */
+	public static synchronized HmacEngineProvider getProvider(final Algorithm algorithm) {
+		if (algorithm == null) {
+			throw new NullPointerException("algorithm");
+		}
+
+		HmacEngineProvider provider = selection.get(algorithm);
+		if (provider == null) {
+			provider = select(algorithm);
+			selection.put(algorithm, provider);
+		}
+		return provider;
+	}
+
+	/**
+	 * @return a human-readable report of all candidates, the provider selected per algorithm and
+	 *         the reason for each selection
+	 */
+	public static synchronized String getDiagnostics() {
+		final StringBuilder report = new StringBuilder("HMAC engines:");
+
+		for (final HmacEngineProvider provider : providers) {
+			report.append("\n  ").append(provider.getName());
+			if (!provider.isAvailable()) {
+				report.append(" (unavailable)");
+			}
+		}
+		if (serviceFailure != null) {
+			report.append("\n  ").append(serviceFailure);
+		}
+
+		for (final Algorithm algorithm : Algorithm.values()) {
+			report.append('\n').append(algorithm).append(": ");
+
+			final HmacEngineProvider provider = selection.get(algorithm);
+			if (provider == null) {
+				report.append("not selected yet");
+			} else {
+				report.append(provider.getName()).append(" (").append(reasons.get(algorithm)).append(')');
+			}
+		}
+
+		return report.toString();
+	}
+
+	/**
+	 * Creates an engine with the provider selected for the given algorithm.
+	 */
+	static HmacEngine create(final Algorithm algorithm, final int concurrencyLevel, final byte[] secret) {
+		return getProvider(algorithm).createEngine(algorithm, concurrencyLevel, secret);
+	}
+
+	/**
+	 * Selects the provider named by the system properties, or else the fastest one, and records
+	 * why.
+	 */
+	private static HmacEngineProvider select(final Algorithm algorithm) {
+		final StringBuilder reason = new StringBuilder();
+
+		final String[] properties = { ENGINE_PROPERTY + "." + algorithm, ENGINE_PROPERTY };
+		for (final String property : properties) {
+			final String name = System.getProperty(property);
+			if (name == null) {
+				continue;
+			}
+
+			final HmacEngineProvider provider = find(algorithm, name);
+			if (provider != null) {
+				reasons.put(algorithm, property + "=" + name);
+				return provider;
+			}
+			reason.append(property).append('=').append(name).append(" unavailable; ");
+		}
+
+		reason.append("calibrated:");
+
+		final byte[] secret = new byte[algorithm == Algorithm.SHA512 ? 64 : 32];
+		for (int i = 0; i < secret.length; ++i) {
+			secret[i] = (byte) i;
+		}
+
+		final List<HmacEngineProvider> candidates = new ArrayList<HmacEngineProvider>();
+		final List<HmacEngine> engines = new ArrayList<HmacEngine>();
+
+		for (final HmacEngineProvider provider : providers) {
+			if (!provider.isAvailable() || !provider.supports(algorithm)) {
+				continue;
+			}
+
+			try {
+				final HmacEngine engine = provider.createEngine(algorithm, 1, secret);
+				warmUp(engine);
+				candidates.add(provider);
+				engines.add(engine);
+			} catch (RuntimeException e) {
+				reason.append(' ').append(provider.getName()).append(" failed (").append(e).append(')');
+			}
+		}
+
+		// rounds alternate between the engines, so drift of the machine affects all alike
+		final long[] nanos = new long[engines.size()];
+		Arrays.fill(nanos, Long.MAX_VALUE);
+		for (int round = 0; round < CALIBRATION_ROUNDS; ++round) {
+			for (int i = 0; i < engines.size(); ++i) {
+				nanos[i] = Math.min(nanos[i], time(engines.get(i)));
+			}
+		}
+
+		HmacEngineProvider fastest = null;
+		long fastestNanos = Long.MAX_VALUE;
+		final String preferred = preferredEngine(algorithm);
+		HmacEngineProvider standard = null;
+		long standardNanos = Long.MAX_VALUE;
+
+		for (int i = 0; i < candidates.size(); ++i) {
+			final HmacEngineProvider provider = candidates.get(i);
+			reason.append(' ').append(provider.getName()).append('=').append(nanos[i]).append("ns");
+
+			if (standard == null && preferred.equals(provider.getName())) {
+				standard = provider;
+				standardNanos = nanos[i];
+			}
+			if (nanos[i] < fastestNanos) {
+				fastest = provider;
+				fastestNanos = nanos[i];
+			}
+		}
+
+		if (fastest == null) {
+			throw new IllegalStateException("no HMAC engine supports " + algorithm + ": " + reason);
+		}
+
+		if (standard != null && fastest != standard) {
+			final long margin = 100 - 100 * fastestNanos / Math.max(1, standardNanos);
+			reason.append("; ").append(fastest.getName()).append(" faster than ").append(preferred)
+					.append(" by ").append(margin).append('%');
+
+			if (margin < CALIBRATION_MARGIN_PERCENT) {
+				reason.append(", below the margin of ").append(CALIBRATION_MARGIN_PERCENT).append('%');
+				fastest = standard;
+			}
+		}
+
+		reasons.put(algorithm, reason.toString());
+		return fastest;
+	}
+
+	/**
+	 * @return the name of the engine kept unless another one is clearly faster: the JCA
+	 *         {@link javax.crypto.Mac} for SHA-1 and SHA-256, which the JDK backs with SHA
+	 *         instructions where the processor has them, and the pure-Java HMAC for SHA-512
+	 */
+	private static String preferredEngine(final Algorithm algorithm) {
+		return algorithm == Algorithm.SHA512 ? JAVA_ENGINE : JCA_ENGINE;
+	}
+
+	private static void warmUp(final HmacEngine engine) {
+		int sink = 0;
+		for (int i = 0; i < CALIBRATION_WARMUP; ++i) {
+			sink += engine.truncatedHash(i);
+		}
+		SINK.set(sink);
+	}
+
+	/**
+	 * @return the time per password of one round, in nanoseconds
+	 */
+	private static long time(final HmacEngine engine) {
+		int sink = 0;
+
+		final long start = System.nanoTime();
+		for (int i = 0; i < CALIBRATION_ITERATIONS; ++i) {
+			sink += engine.truncatedHash(i);
+		}
+		final long nanos = (System.nanoTime() - start) / CALIBRATION_ITERATIONS;
+
+		// keeps the loop from being optimized away
+		SINK.set(sink);
+		return nanos;
+	}
+
+	private static HmacEngineProvider find(final Algorithm algorithm, final String name) {
+		for (final HmacEngineProvider provider : providers) {
+			if (provider.getName().equals(name) && provider.isAvailable() && provider.supports(algorithm)) {
+				return provider;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Creates {@link JcaHmacEngine}s with the {@link javax.crypto.Mac} of one security provider,
+	 * or of the first one supporting the algorithm.
+	 */
+	private static final class JcaProvider extends HmacEngineProvider {
+		private final String name;
+		private final Provider provider;
+
+		JcaProvider(final String name, final Provider provider) {
+			this.name = name;
+			this.provider = provider;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public boolean supports(final Algorithm algorithm) {
+			if (provider != null) {
+				return provider.getService("Mac", "Hmac" + algorithm) != null;
+			}
+			return Security.getProviders("Mac.Hmac" + algorithm) != null;
+		}
+
+		@Override
+		public HmacEngine createEngine(final Algorithm algorithm, final int concurrencyLevel,
+				final byte[] secret) {
+
+			return new JcaHmacEngine(algorithm, provider, concurrencyLevel, secret);
+		}
+	}
+
+	private HmacEngines() {
+	}
+}
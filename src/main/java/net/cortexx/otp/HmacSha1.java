@@ -0,0 +1,213 @@
+/*
+ * Copyright 2013 Patrick Kelchner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.cortexx.otp;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Pure-Java HMAC-SHA1 for the 8-byte counters of
+ * <a href="http://tools.ietf.org/html/rfc4226">RFC 4226</a>.
+ * <p>
+ * The SHA-1 states after absorbing the inner and outer key pads (the midstates) are computed once
+ * per secret. Every password then takes exactly two compressions: the counter padded to one
+ * block, and the inner hash padded to one block. The compressions themselves are plain SHA-1, so
+ * this is no faster than a JCA {@link javax.crypto.Mac}, and slower where the JDK backs that with
+ * SHA instructions; its gain is that it never locks.
+ * <p>
+ * The midstates are immutable and the working memory is kept per thread, so instances are
+ * thread-safe without locking.
+ */
+final class HmacSha1 extends HmacEngine {
+	/** The number of ints making up the inner and outer midstate of one secret. */
+	static final int STATE_INTS = 10;
+
+	private static final int BLOCK_BYTES = 64;
+
+	/** Bit length of a block plus the 8-byte counter, the length padding of the inner block. */
+	private static final int INNER_LENGTH = (BLOCK_BYTES + 8) * 8;
+	/** Bit length of a block plus the 20-byte inner hash, the length padding of the outer block. */
+	private static final int OUTER_LENGTH = (BLOCK_BYTES + 20) * 8;
+
+	/** The message schedule followed by the result of the last compression. */
+	static final ThreadLocal<int[]> SCRATCH = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[80 + 5];
+		}
+	};
+
+	private final int[] state = new int[STATE_INTS];
+
+	HmacSha1(final byte[] secret) {
+		midstate(secret, state, 0);
+	}
+
+	@Override
+	protected int truncatedHash(final long counter) {
+		return truncatedHash(state, 0, counter, SCRATCH.get());
+	}
+
+	@Override
+	protected void truncatedHashes(final long firstCounter, final int[] hashes, final int offset, final int length) {
+		final int[] w = SCRATCH.get();
+
+		for (int i = 0; i < length; ++i) {
+			hashes[offset + i] = truncatedHash(state, 0, firstCounter + i, w);
+		}
+	}
+
+	/**
+	 * Computes the inner and outer midstate of the given secret into
+	 * <code>state[offset..offset + STATE_INTS)</code>.
+	 */
+	static void midstate(final byte[] secret, final int[] state, final int offset) {
+		final byte[] key = secret.length > BLOCK_BYTES ? sha1(secret) : secret;
+		final int[] w = new int[80 + 5];
+
+		pad(key, 0x36, w);
+		initialize(state, offset);
+		compress(state, offset, w);
+		System.arraycopy(w, 80, state, offset, 5);
+
+		pad(key, 0x5C, w);
+		initialize(state, offset + 5);
+		compress(state, offset + 5, w);
+		System.arraycopy(w, 80, state, offset + 5, 5);
+
+		// the key and the padded blocks are as sensitive as the secret
+		Arrays.fill(w, 0);
+		if (key != secret) {
+			Arrays.fill(key, (byte) 0);
+		}
+	}
+
+	/**
+	 * Computes the dynamically truncated HMAC of the given counter from the midstate at
+	 * <code>state[offset..offset + STATE_INTS)</code>.
+	 * 
+	 * @param w
+	 *        working memory of at least 85 ints
+	 */
+	static int truncatedHash(final int[] state, final int offset, final long counter, final int[] w) {
+		w[0] = (int) (counter >>> 32);
+		w[1] = (int) counter;
+		w[2] = 0x80000000;
+		for (int i = 3; i < 15; ++i) {
+			w[i] = 0;
+		}
+		w[15] = INNER_LENGTH;
+		compress(state, offset, w);
+
+		System.arraycopy(w, 80, w, 0, 5);
+		w[5] = 0x80000000;
+		for (int i = 6; i < 15; ++i) {
+			w[i] = 0;
+		}
+		w[15] = OUTER_LENGTH;
+		compress(state, offset + 5, w);
+
+		return truncate(w, 80, 5);
+	}
+
+	/**
+	 * Compresses the block in <code>w[0..16)</code> into the state at
+	 * <code>h[offset..offset + 5)</code>, leaving the result in <code>w[80..85)</code>.
+	 */
+	private static void compress(final int[] h, final int offset, final int[] w) {
+		for (int t = 16; t < 80; ++t) {
+			w[t] = Integer.rotateLeft(w[t - 3] ^ w[t - 8] ^ w[t - 14] ^ w[t - 16], 1);
+		}
+
+		int a = h[offset];
+		int b = h[offset + 1];
+		int c = h[offset + 2];
+		int d = h[offset + 3];
+		int e = h[offset + 4];
+
+		for (int t = 0; t < 20; ++t) {
+			final int temp = Integer.rotateLeft(a, 5) + ((b & c) | (~b & d)) + e + w[t] + 0x5A827999;
+			e = d;
+			d = c;
+			c = Integer.rotateLeft(b, 30);
+			b = a;
+			a = temp;
+		}
+		for (int t = 20; t < 40; ++t) {
+			final int temp = Integer.rotateLeft(a, 5) + (b ^ c ^ d) + e + w[t] + 0x6ED9EBA1;
+			e = d;
+			d = c;
+			c = Integer.rotateLeft(b, 30);
+			b = a;
+			a = temp;
+		}
+		for (int t = 40; t < 60; ++t) {
+			final int temp = Integer.rotateLeft(a, 5) + ((b & c) | (b & d) | (c & d)) + e + w[t] + 0x8F1BBCDC;
+			e = d;
+			d = c;
+			c = Integer.rotateLeft(b, 30);
+			b = a;
+			a = temp;
+		}
+		for (int t = 60; t < 80; ++t) {
+			final int temp = Integer.rotateLeft(a, 5) + (b ^ c ^ d) + e + w[t] + 0xCA62C1D6;
+			e = d;
+			d = c;
+			c = Integer.rotateLeft(b, 30);
+			b = a;
+			a = temp;
+		}
+
+		w[80] = h[offset] + a;
+		w[81] = h[offset + 1] + b;
+		w[82] = h[offset + 2] + c;
+		w[83] = h[offset + 3] + d;
+		w[84] = h[offset + 4] + e;
+	}
+
+	private static void initialize(final int[] h, final int offset) {
+		h[offset] = 0x67452301;
+		h[offset + 1] = 0xEFCDAB89;
+		h[offset + 2] = 0x98BADCFE;
+		h[offset + 3] = 0x10325476;
+		h[offset + 4] = 0xC3D2E1F0;
+	}
+
+	/**
+	 * Writes the key, zero-padded to one block and XOR-ed with the given pad byte, into
+	 * <code>w[0..16)</code> as big-endian words.
+	 */
+	private static void pad(final byte[] key, final int pad, final int[] w) {
+		for (int i = 0; i < 16; ++i) {
+			int word = 0;
+			for (int j = 0; j < 4; ++j) {
+				final int index = i * 4 + j;
+				final int b = index < key.length ? key[index] & 0xFF : 0;
+				word = word << 8 | (b ^ pad);
+			}
+			w[i] = word;
+		}
+	}
+
+	private static byte[] sha1(final byte[] data) {
+		try {
+			return MessageDigest.getInstance("SHA-1").digest(data);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
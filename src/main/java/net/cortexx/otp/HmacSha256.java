@@ -0,0 +1,217 @@
+/*
+ * Copyright 2013 Patrick Kelchner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.cortexx.otp;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Pure-Java HMAC-SHA256 for the 8-byte counters of
+ * <a href="http://tools.ietf.org/html/rfc4226">RFC 4226</a>.
+ * <p>
+ * Works like {@link HmacSha1}: the inner and outer midstates are computed once per secret, and
+ * every password takes exactly two plain compressions. It is markedly slower than a JCA
+ * {@link javax.crypto.Mac} backed by SHA instructions, but never locks.
+ */
+final class HmacSha256 extends HmacEngine {
+	/** The number of ints making up the inner and outer midstate of one secret. */
+	static final int STATE_INTS = 16;
+
+	private static final int BLOCK_BYTES = 64;
+
+	/** Bit length of a block plus the 8-byte counter, the length padding of the inner block. */
+	private static final int INNER_LENGTH = (BLOCK_BYTES + 8) * 8;
+	/** Bit length of a block plus the 32-byte inner hash, the length padding of the outer block. */
+	private static final int OUTER_LENGTH = (BLOCK_BYTES + 32) * 8;
+
+	private static final int[] K = {
+			0x428A2F98, 0x71374491, 0xB5C0FBCF, 0xE9B5DBA5, 0x3956C25B, 0x59F111F1, 0x923F82A4, 0xAB1C5ED5,
+			0xD807AA98, 0x12835B01, 0x243185BE, 0x550C7DC3, 0x72BE5D74, 0x80DEB1FE, 0x9BDC06A7, 0xC19BF174,
+			0xE49B69C1, 0xEFBE4786, 0x0FC19DC6, 0x240CA1CC, 0x2DE92C6F, 0x4A7484AA, 0x5CB0A9DC, 0x76F988DA,
+			0x983E5152, 0xA831C66D, 0xB00327C8, 0xBF597FC7, 0xC6E00BF3, 0xD5A79147, 0x06CA6351, 0x14292967,
+			0x27B70A85, 0x2E1B2138, 0x4D2C6DFC, 0x53380D13, 0x650A7354, 0x766A0ABB, 0x81C2C92E, 0x92722C85,
+			0xA2BFE8A1, 0xA81A664B, 0xC24B8B70, 0xC76C51A3, 0xD192E819, 0xD6990624, 0xF40E3585, 0x106AA070,
+			0x19A4C116, 0x1E376C08, 0x2748774C, 0x34B0BCB5, 0x391C0CB3, 0x4ED8AA4A, 0x5B9CCA4F, 0x682E6FF3,
+			0x748F82EE, 0x78A5636F, 0x84C87814, 0x8CC70208, 0x90BEFFFA, 0xA4506CEB, 0xBEF9A3F7, 0xC67178F2
+	};
+
+	/** The message schedule followed by the result of the last compression. */
+	static final ThreadLocal<int[]> SCRATCH = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[64 + 8];
+		}
+	};
+
+	private final int[] state = new int[STATE_INTS];
+
+	HmacSha256(final byte[] secret) {
+		midstate(secret, state, 0);
+	}
+
+	@Override
+	protected int truncatedHash(final long counter) {
+		return truncatedHash(state, 0, counter, SCRATCH.get());
+	}
+
+	@Override
+	protected void truncatedHashes(final long firstCounter, final int[] hashes, final int offset, final int length) {
+		final int[] w = SCRATCH.get();
+
+		for (int i = 0; i < length; ++i) {
+			hashes[offset + i] = truncatedHash(state, 0, firstCounter + i, w);
+		}
+	}
+
+	/**
+	 * Computes the inner and outer midstate of the given secret into
+	 * <code>state[offset..offset + STATE_INTS)</code>.
+	 */
+	static void midstate(final byte[] secret, final int[] state, final int offset) {
+		final byte[] key = secret.length > BLOCK_BYTES ? sha256(secret) : secret;
+		final int[] w = new int[64 + 8];
+
+		pad(key, 0x36, w);
+		initialize(state, offset);
+		compress(state, offset, w);
+		System.arraycopy(w, 64, state, offset, 8);
+
+		pad(key, 0x5C, w);
+		initialize(state, offset + 8);
+		compress(state, offset + 8, w);
+		System.arraycopy(w, 64, state, offset + 8, 8);
+
+		// the key and the padded blocks are as sensitive as the secret
+		Arrays.fill(w, 0);
+		if (key != secret) {
+			Arrays.fill(key, (byte) 0);
+		}
+	}
+
+	/**
+	 * Computes the dynamically truncated HMAC of the given counter from the midstate at
+	 * <code>state[offset..offset + STATE_INTS)</code>.
+	 * 
+	 * @param w
+	 *        working memory of at least 72 ints
+	 */
+	static int truncatedHash(final int[] state, final int offset, final long counter, final int[] w) {
+		w[0] = (int) (counter >>> 32);
+		w[1] = (int) counter;
+		w[2] = 0x80000000;
+		for (int i = 3; i < 15; ++i) {
+			w[i] = 0;
+		}
+		w[15] = INNER_LENGTH;
+		compress(state, offset, w);
+
+		System.arraycopy(w, 64, w, 0, 8);
+		w[8] = 0x80000000;
+		for (int i = 9; i < 15; ++i) {
+			w[i] = 0;
+		}
+		w[15] = OUTER_LENGTH;
+		compress(state, offset + 8, w);
+
+		return truncate(w, 64, 8);
+	}
+
+	/**
+	 * Compresses the block in <code>w[0..16)</code> into the state at
+	 * <code>h[offset..offset + 8)</code>, leaving the result in <code>w[64..72)</code>.
+	 */
+	private static void compress(final int[] h, final int offset, final int[] w) {
+		for (int t = 16; t < 64; ++t) {
+			final int w15 = w[t - 15];
+			final int w2 = w[t - 2];
+			final int s0 = Integer.rotateRight(w15, 7) ^ Integer.rotateRight(w15, 18) ^ (w15 >>> 3);
+			final int s1 = Integer.rotateRight(w2, 17) ^ Integer.rotateRight(w2, 19) ^ (w2 >>> 10);
+			w[t] = w[t - 16] + s0 + w[t - 7] + s1;
+		}
+
+		int a = h[offset];
+		int b = h[offset + 1];
+		int c = h[offset + 2];
+		int d = h[offset + 3];
+		int e = h[offset + 4];
+		int f = h[offset + 5];
+		int g = h[offset + 6];
+		int hh = h[offset + 7];
+
+		for (int t = 0; t < 64; ++t) {
+			final int s1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25);
+			final int ch = (e & f) ^ (~e & g);
+			final int temp1 = hh + s1 + ch + K[t] + w[t];
+			final int s0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22);
+			final int maj = (a & b) ^ (a & c) ^ (b & c);
+			final int temp2 = s0 + maj;
+
+			hh = g;
+			g = f;
+			f = e;
+			e = d + temp1;
+			d = c;
+			c = b;
+			b = a;
+			a = temp1 + temp2;
+		}
+
+		w[64] = h[offset] + a;
+		w[65] = h[offset + 1] + b;
+		w[66] = h[offset + 2] + c;
+		w[67] = h[offset + 3] + d;
+		w[68] = h[offset + 4] + e;
+		w[69] = h[offset + 5] + f;
+		w[70] = h[offset + 6] + g;
+		w[71] = h[offset + 7] + hh;
+	}
+
+	private static void initialize(final int[] h, final int offset) {
+		h[offset] = 0x6A09E667;
+		h[offset + 1] = 0xBB67AE85;
+		h[offset + 2] = 0x3C6EF372;
+		h[offset + 3] = 0xA54FF53A;
+		h[offset + 4] = 0x510E527F;
+		h[offset + 5] = 0x9B05688C;
+		h[offset + 6] = 0x1F83D9AB;
+		h[offset + 7] = 0x5BE0CD19;
+	}
+
+	/**
+	 * Writes the key, zero-padded to one block and XOR-ed with the given pad byte, into
+	 * <code>w[0..16)</code> as big-endian words.
+	 */
+	private static void pad(final byte[] key, final int pad, final int[] w) {
+		for (int i = 0; i < 16; ++i) {
+			int word = 0;
+			for (int j = 0; j < 4; ++j) {
+				final int index = i * 4 + j;
+				final int b = index < key.length ? key[index] & 0xFF : 0;
+				word = word << 8 | (b ^ pad);
+			}
+			w[i] = word;
+		}
+	}
+
+	private static byte[] sha256(final byte[] data) {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(data);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2013 Patrick Kelchner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.cortexx.otp;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Pure-Java HMAC-SHA512 specialized for the 8-byte counters of
+ * <a href="http://tools.ietf.org/html/rfc4226">RFC 4226</a>.
+ * <p>
+ * Works like {@link HmacSha1} on 64-bit words: the inner and outer midstates are computed once
+ * per secret, and every password takes exactly two compressions with constant padding words.
+ */
+final class HmacSha512 extends HmacEngine {
+	/** The number of longs making up the inner and outer midstate of one secret. */
+	static final int STATE_LONGS = 16;
+
+	private static final int BLOCK_BYTES = 128;
+
+	/** Bit length of a block plus the 8-byte counter, the length padding of the inner block. */
+	private static final long INNER_LENGTH = (BLOCK_BYTES + 8) * 8;
+	/** Bit length of a block plus the 64-byte inner hash, the length padding of the outer block. */
+	private static final long OUTER_LENGTH = (BLOCK_BYTES + 64) * 8;
+
+	private static final long[] K = {
+			0x428A2F98D728AE22L, 0x7137449123EF65CDL, 0xB5C0FBCFEC4D3B2FL, 0xE9B5DBA58189DBBCL,
+			0x3956C25BF348B538L, 0x59F111F1B605D019L, 0x923F82A4AF194F9BL, 0xAB1C5ED5DA6D8118L,
+			0xD807AA98A3030242L, 0x12835B0145706FBEL, 0x243185BE4EE4B28CL, 0x550C7DC3D5FFB4E2L,
+			0x72BE5D74F27B896FL, 0x80DEB1FE3B1696B1L, 0x9BDC06A725C71235L, 0xC19BF174CF692694L,
+			0xE49B69C19EF14AD2L, 0xEFBE4786384F25E3L, 0x0FC19DC68B8CD5B5L, 0x240CA1CC77AC9C65L,
+			0x2DE92C6F592B0275L, 0x4A7484AA6EA6E483L, 0x5CB0A9DCBD41FBD4L, 0x76F988DA831153B5L,
+			0x983E5152EE66DFABL, 0xA831C66D2DB43210L, 0xB00327C898FB213FL, 0xBF597FC7BEEF0EE4L,
+			0xC6E00BF33DA88FC2L, 0xD5A79147930AA725L, 0x06CA6351E003826FL, 0x142929670A0E6E70L,
+			0x27B70A8546D22FFCL, 0x2E1B21385C26C926L, 0x4D2C6DFC5AC42AEDL, 0x53380D139D95B3DFL,
+			0x650A73548BAF63DEL, 0x766A0ABB3C77B2A8L, 0x81C2C92E47EDAEE6L, 0x92722C851482353BL,
+			0xA2BFE8A14CF10364L, 0xA81A664BBC423001L, 0xC24B8B70D0F89791L, 0xC76C51A30654BE30L,
+			0xD192E819D6EF5218L, 0xD69906245565A910L, 0xF40E35855771202AL, 0x106AA07032BBD1B8L,
+			0x19A4C116B8D2D0C8L, 0x1E376C085141AB53L, 0x2748774CDF8EEB99L, 0x34B0BCB5E19B48A8L,
+			0x391C0CB3C5C95A63L, 0x4ED8AA4AE3418ACBL, 0x5B9CCA4F7763E373L, 0x682E6FF3D6B2B8A3L,
+			0x748F82EE5DEFB2FCL, 0x78A5636F43172F60L, 0x84C87814A1F0AB72L, 0x8CC702081A6439ECL,
+			0x90BEFFFA23631E28L, 0xA4506CEBDE82BDE9L, 0xBEF9A3F7B2C67915L, 0xC67178F2E372532BL,
+			0xCA273ECEEA26619CL, 0xD186B8C721C0C207L, 0xEADA7DD6CDE0EB1EL, 0xF57D4F7FEE6ED178L,
+			0x06F067AA72176FBAL, 0x0A637DC5A2C898A6L, 0x113F9804BEF90DAEL, 0x1B710B35131C471BL,
+			0x28DB77F523047D84L, 0x32CAAB7B40C72493L, 0x3C9EBE0A15C9BEBCL, 0x431D67C49C100D4CL,
+			0x4CC5D4BECB3E42B6L, 0x597F299CFC657E2AL, 0x5FCB6FAB3AD6FAECL, 0x6C44198C4A475817L
+	};
+
+	/** The message schedule followed by the result of the last compression. */
+	static final ThreadLocal<long[]> SCRATCH = new ThreadLocal<long[]>() {
+		@Override
+		protected long[] initialValue() {
+			return new long[80 + 8];
+		}
+	};
+
+	private final long[] state = new long[STATE_LONGS];
+
+	HmacSha512(final byte[] secret) {
+		midstate(secret, state, 0);
+	}
+
+	@Override
+	protected int truncatedHash(final long counter) {
+		return truncatedHash(state, 0, counter, SCRATCH.get());
+	}
+
+	@Override
+	protected void truncatedHashes(final long firstCounter, final int[] hashes, final int offset, final int length) {
+		final long[] w = SCRATCH.get();
+
+		for (int i = 0; i < length; ++i) {
+			hashes[offset + i] = truncatedHash(state, 0, firstCounter + i, w);
+		}
+	}
+
+	/**
+	 * Computes the inner and outer midstate of the given secret into
+	 * <code>state[offset..offset + STATE_LONGS)</code>.
+	 */
+	static void midstate(final byte[] secret, final long[] state, final int offset) {
+		final byte[] key = secret.length > BLOCK_BYTES ? sha512(secret) : secret;
+		final long[] w = new long[80 + 8];
+
+		pad(key, 0x36, w);
+		initialize(state, offset);
+		compress(state, offset, w);
+		System.arraycopy(w, 80, state, offset, 8);
+
+		pad(key, 0x5C, w);
+		initialize(state, offset + 8);
+		compress(state, offset + 8, w);
+		System.arraycopy(w, 80, state, offset + 8, 8);
+
+		// the key and the padded blocks are as sensitive as the secret
+		Arrays.fill(w, 0);
+		if (key != secret) {
+			Arrays.fill(key, (byte) 0);
+		}
+	}
+
+	/**
+	 * Computes the dynamically truncated HMAC of the given counter from the midstate at
+	 * <code>state[offset..offset + STATE_LONGS)</code>.
+	 * 
+	 * @param w
+	 *        working memory of at least 88 longs
+	 */
+	static int truncatedHash(final long[] state, final int offset, final long counter, final long[] w) {
+		w[0] = counter;
+		w[1] = 0x8000000000000000L;
+		for (int i = 2; i < 15; ++i) {
+			w[i] = 0;
+		}
+		w[15] = INNER_LENGTH;
+		compress(state, offset, w);
+
+		System.arraycopy(w, 80, w, 0, 8);
+		w[8] = 0x8000000000000000L;
+		for (int i = 9; i < 15; ++i) {
+			w[i] = 0;
+		}
+		w[15] = OUTER_LENGTH;
+		compress(state, offset + 8, w);
+
+		return truncate(w, 80, 8);
+	}
+
+	/**
+	 * Compresses the block in <code>w[0..16)</code> into the state at
+	 * <code>h[offset..offset + 8)</code>, leaving the result in <code>w[80..88)</code>.
+	 */
+	private static void compress(final long[] h, final int offset, final long[] w) {
+		for (int t = 16; t < 80; ++t) {
+			final long w15 = w[t - 15];
+			final long w2 = w[t - 2];
+			final long s0 = Long.rotateRight(w15, 1) ^ Long.rotateRight(w15, 8) ^ (w15 >>> 7);
+			final long s1 = Long.rotateRight(w2, 19) ^ Long.rotateRight(w2, 61) ^ (w2 >>> 6);
+			w[t] = w[t - 16] + s0 + w[t - 7] + s1;
+		}
+
+		long a = h[offset];
+		long b = h[offset + 1];
+		long c = h[offset + 2];
+		long d = h[offset + 3];
+		long e = h[offset + 4];
+		long f = h[offset + 5];
+		long g = h[offset + 6];
+		long hh = h[offset + 7];
+
+		for (int t = 0; t < 80; ++t) {
+			final long s1 = Long.rotateRight(e, 14) ^ Long.rotateRight(e, 18) ^ Long.rotateRight(e, 41);
+			final long ch = (e & f) ^ (~e & g);
+			final long temp1 = hh + s1 + ch + K[t] + w[t];
+			final long s0 = Long.rotateRight(a, 28) ^ Long.rotateRight(a, 34) ^ Long.rotateRight(a, 39);
+			final long maj = (a & b) ^ (a & c) ^ (b & c);
+			final long temp2 = s0 + maj;
+
+			hh = g;
+			g = f;
+			f = e;
+			e = d + temp1;
+			d = c;
+			c = b;
+			b = a;
+			a = temp1 + temp2;
+		}
+
+		w[80] = h[offset] + a;
+		w[81] = h[offset + 1] + b;
+		w[82] = h[offset + 2] + c;
+		w[83] = h[offset + 3] + d;
+		w[84] = h[offset + 4] + e;
+		w[85] = h[offset + 5] + f;
+		w[86] = h[offset + 6] + g;
+		w[87] = h[offset + 7] + hh;
+	}
+
+	private static void initialize(final long[] h, final int offset) {
+		h[offset] = 0x6A09E667F3BCC908L;
+		h[offset + 1] = 0xBB67AE8584CAA73BL;
+		h[offset + 2] = 0x3C6EF372FE94F82BL;
+		h[offset + 3] = 0xA54FF53A5F1D36F1L;
+		h[offset + 4] = 0x510E527FADE682D1L;
+		h[offset + 5] = 0x9B05688C2B3E6C1FL;
+		h[offset + 6] = 0x1F83D9ABFB41BD6BL;
+		h[offset + 7] = 0x5BE0CD19137E2179L;
+	}
+
+	/**
+	 * Writes the key, zero-padded to one block and XOR-ed with the given pad byte, into
+	 * <code>w[0..16)</code> as big-endian words.
+	 */
+	private static void pad(final byte[] key, final int pad, final long[] w) {
+		for (int i = 0; i < 16; ++i) {
+			long word = 0;
+			for (int j = 0; j < 8; ++j) {
+				final int index = i * 8 + j;
+				final int b = index < key.length ? key[index] & 0xFF : 0;
+				word = word << 8 | (b ^ pad);
+			}
+			w[i] = word;
+		}
+	}
+
+	private static byte[] sha512(final byte[] data) {
+		try {
+			return MessageDigest.getInstance("SHA-512").digest(data);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2013 Patrick Kelchner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.cortexx.otp;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Resynchronizes the counter of an {@link HmacBasedOneTimePassword} whose token has moved ahead,
+ * by searching a look-ahead window for two consecutive passwords entered by the user.
+ * This type is thread-safe.
+ * <p>
+ * The passwords of the window are generated in batches, in parallel on the given executor for
+ * large windows, and indexed by an open-addressing table from password to counter, so each
+ * entered password is found in constant time.
+ */
+public final class HotpResynchronizer {
+	/** Returned if the passwords are not found in the window. */
+	public static final long NO_MATCH = -1;
+
+	/** The number of counters generated by one task. */
+	private static final int CHUNK = 1024;
+
+	private final int window;
+	private final Executor executor;
+	private final int parallelism;
+
+	/**
+	 * Creates a resynchronizer generating passwords on the calling thread only.
+	 * 
+	 * @param window
+	 *        the number of counters searched, starting from the current one
+	 */
+	public HotpResynchronizer(final int window) {
+		this(window, null, 1);
+	}
+
+	/**
+	 * @param window
+	 *        the number of counters searched, starting from the current one
+	 * @param executor
+	 *        runs the generation of large windows in parallel with the calling thread, or
+	 *        <code>null</code> to use the calling thread only
+	 * @param parallelism
+	 *        the maximum number of threads generating the passwords of one window, including the
+	 *        calling thread
+	 */
+	public HotpResynchronizer(final int window, final Executor executor, final int parallelism) {
+		if (window <= 0) {
+			throw new IllegalArgumentException("'window' must be positive");
+		}
+		if (parallelism <= 0) {
+			throw new IllegalArgumentException("'parallelism' must be positive");
+		}
+
+		this.window = window;
+		this.executor = executor;
+		this.parallelism = executor == null ? 1 : parallelism;
+	}
+
+	/**
+	 * @return the number of counters searched
+	 */
+	public int getWindow() {
+		return window;
+	}
+
+	/**
+	 * Searches the window starting at the given counter for the first counter whose password is
+	 * <code>first</code> and whose successor's password is <code>second</code>.
+	 * 
+	 * @param otp
+	 *        the one-time password of the token
+	 * @param counter
+	 *        the current counter
+	 * @param first
+	 *        the first of two consecutive passwords shown by the token
+	 * @param second
+	 *        the password shown by the token after <code>first</code>
+	 * @return the counter following the one of <code>second</code>, i.e. the new current counter,
+	 *         or {@link #NO_MATCH}
+	 */
+	public long resynchronize(final HmacBasedOneTimePassword otp, final long counter,
+			final int first, final int second) {
+
+		if (otp == null) {
+			throw new NullPointerException("otp");
+		}
+
+		// one more than the window, so that second may follow the last counter of the window
+		final int[] passwords = new int[window + 1];
+		generate(otp, counter, passwords);
+
+		final int offset = new Index(passwords).find(first, second);
+
+		return offset < 0 ? NO_MATCH : counter + offset + 2;
+	}
+
+	private void generate(final HmacBasedOneTimePassword otp, final long counter, final int[] passwords) {
+		final int chunks = (passwords.length + CHUNK - 1) / CHUNK;
+		final int helpers = Math.min(parallelism, chunks) - 1;
+
+		if (helpers == 0) {
+			otp.generatePasswords(counter, passwords, 0, passwords.length);
+			return;
+		}
+
+		final AtomicInteger next = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(chunks);
+		final RuntimeException[] failure = new RuntimeException[1];
+
+		final Runnable task = new Runnable() {
+			public void run() {
+				for (int chunk; (chunk = next.getAndIncrement()) < chunks;) {
+					try {
+						final int offset = chunk * CHUNK;
+						otp.generatePasswords(counter + offset, passwords, offset,
+								Math.min(CHUNK, passwords.length - offset));
+					} catch (final RuntimeException e) {
+						synchronized (failure) {
+							failure[0] = e;
+						}
+					} finally {
+						done.countDown();
+					}
+				}
+			}
+		};
+
+		for (int i = 0; i < helpers; ++i) {
+			executor.execute(task);
+		}
+		// the calling thread works as well, so a saturated executor only costs parallelism
+		task.run();
+
+		boolean interrupted = false;
+		while (true) {
+			try {
+				done.await();
+				break;
+			} catch (final InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+
+		synchronized (failure) {
+			if (failure[0] != null) {
+				throw failure[0];
+			}
+		}
+	}
+
+	/**
+	 * An open-addressing table from password to the offsets of its counters. Passwords repeat
+	 * within large windows, so every occurrence is kept.
+	 */
+	private static final class Index {
+		private final int[] passwords;
+		private final int[] offsets;
+		private final int mask;
+
+		Index(final int[] passwords) {
+			final int length = passwords.length - 1;
+			int capacity = 16;
+			while (capacity < 2 * length) {
+				capacity <<= 1;
+			}
+
+			this.passwords = passwords;
+			this.offsets = new int[capacity];
+			this.mask = capacity - 1;
+
+			Arrays.fill(offsets, -1);
+
+			for (int i = 0; i < length; ++i) {
+				int slot = hash(passwords[i]);
+				while (offsets[slot] >= 0) {
+					slot = (slot + 1) & mask;
+				}
+				offsets[slot] = i;
+			}
+		}
+
+		/**
+		 * @return the smallest offset holding <code>first</code> followed by <code>second</code>,
+		 *         or -1
+		 */
+		int find(final int first, final int second) {
+			int found = -1;
+
+			for (int slot = hash(first); offsets[slot] >= 0; slot = (slot + 1) & mask) {
+				final int offset = offsets[slot];
+				if (passwords[offset] == first && passwords[offset + 1] == second
+						&& (found < 0 || offset < found)) {
+					found = offset;
+				}
+			}
+
+			return found;
+		}
+
+		private int hash(final int password) {
+			final int hash = password * 0x9E3779B9;
+			return (hash ^ hash >>> 16) & mask;
+		}
+	}
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2013 Patrick Kelchner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.cortexx.otp;
+
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+import net.cortexx.otp.HmacBasedOneTimePassword.Algorithm;
+
+/**
+ * {@link HmacEngine} delegating to the JCA {@link Mac} of a given provider, or of the first
+ * provider supporting the algorithm.
+ * <p>
+ * A {@link Mac} is not thread-safe, so each one is guarded by a lock. An engine created with a
+ * concurrency level greater than one holds that many copies of the initialized {@link Mac} and
+ * spreads callers across them by thread.
+ * <p>
+ * Each {@link Mac} comes with its own counter and hash buffers, which are only touched while
+ * holding its lock, so generating a password allocates no more than the one hash array the JDK
+ * creates internally on each {@link Mac#doFinal(byte[], int)}.
+ */
+final class JcaHmacEngine extends HmacEngine {
+	private final Mac[] macs;
+	private final Lock[] locks;
+	private final byte[][] counters;
+	private final byte[][] hashes;
+
+	/**
+	 * @param provider
+	 *        the JCA provider to take the {@link Mac} from, or <code>null</code> for the first one
+	 *        supporting the algorithm
+	 */
+	JcaHmacEngine(final Algorithm algorithm, final Provider provider,
+			final int concurrencyLevel, final byte[] secret) {
+		macs = new Mac[concurrencyLevel];
+		locks = new Lock[concurrencyLevel];
+		counters = new byte[concurrencyLevel][8];
+		hashes = new byte[concurrencyLevel][];
+
+		try {
+			final SecretKeySpec key = new SecretKeySpec(secret, "raw");
+
+			macs[0] = provider == null
+					? Mac.getInstance("hmac" + algorithm)
+					: Mac.getInstance("hmac" + algorithm, provider);
+			macs[0].init(key);
+
+			for (int i = 1; i < concurrencyLevel; ++i) {
+				macs[i] = copy(macs[0], key);
+			}
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (InvalidKeyException e) {
+			throw new IllegalStateException(e);
+		}
+
+		for (int i = 0; i < concurrencyLevel; ++i) {
+			locks[i] = new ReentrantLock();
+			hashes[i] = new byte[macs[i].getMacLength()];
+		}
+	}
+
+	@Override
+	protected int truncatedHash(final long counter) {
+		final int stripe = acquireStripe();
+
+		try {
+			return truncatedHash(stripe, counter);
+		} finally {
+			locks[stripe].unlock();
+		}
+	}
+
+	@Override
+	protected void truncatedHashes(final long firstCounter, final int[] hashes, final int offset, final int length) {
+		final int stripe = acquireStripe();
+
+		try {
+			for (int i = 0; i < length; ++i) {
+				hashes[offset + i] = truncatedHash(stripe, firstCounter + i);
+			}
+		} finally {
+			locks[stripe].unlock();
+		}
+	}
+
+	/**
+	 * Computes the truncated hash of the given counter with the {@link Mac} of the given stripe,
+	 * whose lock must be held.
+	 */
+	private int truncatedHash(final int stripe, final long counter) {
+		final byte[] counterBytes = counters[stripe];
+		final byte[] hash = hashes[stripe];
+
+		for (int i = 7; i >= 0; --i) {
+			counterBytes[i] = (byte) (counter >>> ((7 - i) << 3));
+		}
+
+		try {
+			macs[stripe].update(counterBytes);
+			macs[stripe].doFinal(hash, 0);
+		} catch (ShortBufferException e) {
+			throw new IllegalStateException(e);
+		}
+
+		return truncate(hash, 0, hash.length);
+	}
+
+	/**
+	 * Locks and returns the index of a {@link Mac}, preferring the one assigned to the current
+	 * thread and falling back to any other currently uncontended one before blocking.
+	 */
+	private int acquireStripe() {
+		final int stripes = macs.length;
+		final int home = (int) (Thread.currentThread().getId() % stripes);
+
+		if (locks[home].tryLock()) {
+			return home;
+		}
+		for (int i = 1; i < stripes; ++i) {
+			final int stripe = (home + i) % stripes;
+			if (locks[stripe].tryLock()) {
+				return stripe;
+			}
+		}
+
+		locks[home].lock();
+		return home;
+	}
+
+	/**
+	 * Clones the given initialized {@link Mac}, re-initializing a new instance from the same
+	 * provider if it does not support cloning.
+	 */
+	private static Mac copy(final Mac prototype, final SecretKeySpec key)
+			throws NoSuchAlgorithmException, InvalidKeyException {
+		try {
+			return (Mac) prototype.clone();
+		} catch (CloneNotSupportedException e) {
+			final Mac mac = Mac.getInstance(prototype.getAlgorithm(), prototype.getProvider());
+			mac.init(key);
+			return mac;
+		}
+	}
+}
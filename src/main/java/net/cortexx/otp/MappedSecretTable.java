@@ -0,0 +1,419 @@
+/*
+ * Copyright 2013 Patrick Kelchner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.cortexx.otp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import net.cortexx.otp.HmacBasedOneTimePassword.Algorithm;
+
+/**
+ * A read-only table of accounts, memory-mapped from a file, that generates one-time passwords
+ * directly from the mapped records. Accounts are identified by the index of their record.
+ * This type is thread-safe.
+ * <p>
+ * Opening a table only maps the file, so a process can serve passwords as soon as it starts, and
+ * processes on the same host mapping the same file share its pages in the page cache. Records
+ * hold the precomputed HMAC midstates of the accounts' secrets, never the secrets themselves.
+ * <p>
+ * The file starts with a header of {@value #HEADER_BYTES} bytes: the magic number
+ * <code>0x4F545054</code> ("OTPT"), the format version 1 and the number of records as
+ * big-endian ints, followed by 4 reserved bytes. Then come the records of {@value #RECORD_BYTES}
+ * bytes each, sorted by account id without duplicates:
+ * <table>
+ * <tr><td>8 bytes</td><td>account id, a signed big-endian long</td></tr>
+ * <tr><td>1 byte</td><td>algorithm: 1 for SHA1, 2 for SHA256, 3 for SHA512</td></tr>
+ * <tr><td>1 byte</td><td>number of digits</td></tr>
+ * <tr><td>2 bytes</td><td>reserved</td></tr>
+ * <tr><td>4 bytes</td><td>timeslot length in seconds, a big-endian int</td></tr>
+ * <tr><td>128 bytes</td><td>inner and outer HMAC midstates as big-endian words, zero-padded</td></tr>
+ * </table>
+ * Files are created with a {@link Writer}.
+ */
+public final class MappedSecretTable implements OneTimePasswordTable {
+	/** The length of the file header. */
+	public static final int HEADER_BYTES = 16;
+	/** The length of one record. */
+	public static final int RECORD_BYTES = 144;
+
+	private static final int MAGIC = 0x4F545054;
+	private static final int VERSION = 1;
+
+	private static final int ALGORITHM = 8;
+	private static final int DIGITS = 9;
+	private static final int PERIOD = 12;
+	private static final int STATE = 16;
+
+	/** Records per mapping, keeping each mapping well below 2GB. */
+	private static final int CHUNK_SHIFT = 23;
+	private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+
+	private static final ThreadLocal<int[]> INT_STATE = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[HmacSha256.STATE_INTS];
+		}
+	};
+	private static final ThreadLocal<long[]> LONG_STATE = new ThreadLocal<long[]>() {
+		@Override
+		protected long[] initialValue() {
+			return new long[HmacSha512.STATE_LONGS];
+		}
+	};
+
+	private final MappedByteBuffer[] chunks;
+	private final int size;
+
+	private MappedSecretTable(final MappedByteBuffer[] chunks, final int size) {
+		this.chunks = chunks;
+		this.size = size;
+	}
+
+	/**
+	 * Maps the given table file. The mapping stays valid until this table is garbage collected,
+	 * even if the file is replaced in the meantime.
+	 * 
+	 * @throws IOException
+	 *         if the file cannot be read or is not a table
+	 */
+	public static MappedSecretTable open(final File file) throws IOException {
+		if (file == null) {
+			throw new NullPointerException("file");
+		}
+
+		final RandomAccessFile input = new RandomAccessFile(file, "r");
+		try {
+			final FileChannel channel = input.getChannel();
+			if (channel.size() < HEADER_BYTES) {
+				throw new IOException(file + " is not a secret table");
+			}
+
+			final ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+			if (header.getInt(0) != MAGIC) {
+				throw new IOException(file + " is not a secret table");
+			}
+			if (header.getInt(4) != VERSION) {
+				throw new IOException(file + " has unsupported version " + header.getInt(4));
+			}
+
+			final int size = header.getInt(8);
+			if (size < 0 || channel.size() != HEADER_BYTES + (long) size * RECORD_BYTES) {
+				throw new IOException(file + " is truncated or corrupt");
+			}
+
+			final MappedByteBuffer[] chunks = new MappedByteBuffer[(size + CHUNK_MASK) >>> CHUNK_SHIFT];
+			for (int i = 0; i < chunks.length; ++i) {
+				final long first = (long) i << CHUNK_SHIFT;
+				final long records = Math.min(size - first, 1L << CHUNK_SHIFT);
+
+				chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+						HEADER_BYTES + first * RECORD_BYTES, records * RECORD_BYTES);
+			}
+
+			return new MappedSecretTable(chunks, size);
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * @return the number of records
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Finds the record of the given account by binary search.
+	 * 
+	 * @return the index of the account's record, or <code>-1</code> if there is none
+	 */
+	public int find(final long accountId) {
+		int low = 0;
+		int high = size - 1;
+
+		while (low <= high) {
+			final int middle = (low + high) >>> 1;
+			final long id = getAccountId(middle);
+
+			if (id < accountId) {
+				low = middle + 1;
+			} else if (id > accountId) {
+				high = middle - 1;
+			} else {
+				return middle;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * @return the account id of the given record
+	 */
+	public long getAccountId(final int record) {
+		return chunk(record).getLong(position(record));
+	}
+
+	/**
+	 * @return the algorithm of the given record
+	 */
+	public Algorithm getAlgorithm(final int record) {
+		return algorithm(chunk(record).get(position(record) + ALGORITHM));
+	}
+
+	public int getNumberOfDigits(final int record) {
+		return chunk(record).get(position(record) + DIGITS);
+	}
+
+	/**
+	 * @return the timeslot length of the given record, in seconds
+	 */
+	public int getTimeslotSeconds(final int record) {
+		return chunk(record).getInt(position(record) + PERIOD);
+	}
+
+	public int generatePassword(final int record, final long counter) {
+		final ByteBuffer chunk = chunk(record);
+		final int position = position(record);
+		final int truncation = HmacBasedOneTimePassword.truncation(chunk.get(position + DIGITS));
+		final int state = position + STATE;
+
+		switch (algorithm(chunk.get(position + ALGORITHM))) {
+		case SHA1: {
+			final int[] midstate = INT_STATE.get();
+			try {
+				for (int i = 0; i < HmacSha1.STATE_INTS; ++i) {
+					midstate[i] = chunk.getInt(state + 4 * i);
+				}
+				return HmacSha1.truncatedHash(midstate, 0, counter, HmacSha1.SCRATCH.get()) % truncation;
+			} finally {
+				Arrays.fill(midstate, 0);
+			}
+		}
+		case SHA256: {
+			final int[] midstate = INT_STATE.get();
+			try {
+				for (int i = 0; i < HmacSha256.STATE_INTS; ++i) {
+					midstate[i] = chunk.getInt(state + 4 * i);
+				}
+				return HmacSha256.truncatedHash(midstate, 0, counter, HmacSha256.SCRATCH.get()) % truncation;
+			} finally {
+				Arrays.fill(midstate, 0);
+			}
+		}
+		default: {
+			final long[] midstate = LONG_STATE.get();
+			try {
+				for (int i = 0; i < HmacSha512.STATE_LONGS; ++i) {
+					midstate[i] = chunk.getLong(state + 8 * i);
+				}
+				return HmacSha512.truncatedHash(midstate, 0, counter, HmacSha512.SCRATCH.get()) % truncation;
+			} finally {
+				Arrays.fill(midstate, 0);
+			}
+		}
+		}
+	}
+
+	private ByteBuffer chunk(final int record) {
+		if (record < 0 || record >= size) {
+			throw new IndexOutOfBoundsException("record " + record);
+		}
+		return chunks[record >>> CHUNK_SHIFT];
+	}
+
+	private static int position(final int record) {
+		return (record & CHUNK_MASK) * RECORD_BYTES;
+	}
+
+	private static Algorithm algorithm(final int code) {
+		switch (code) {
+		case 1:
+			return Algorithm.SHA1;
+		case 2:
+			return Algorithm.SHA256;
+		case 3:
+			return Algorithm.SHA512;
+		default:
+			throw new IllegalStateException("unknown algorithm code " + code);
+		}
+	}
+
+	/**
+	 * Collects accounts and writes them as a table file.
+	 * This type is not thread-safe.
+	 * <p>
+	 * Secrets are reduced to their midstates when added and are not retained.
+	 */
+	public static final class Writer {
+		private long[] accountIds = new long[16];
+		private byte[][] records = new byte[16][];
+		private int size;
+
+		/**
+		 * Adds an account.
+		 * 
+		 * @param accountId
+		 *        the unique id of the account
+		 * @param algorithm
+		 *        the algorithm to use for hashing
+		 * @param numberOfDigits
+		 *        the number of digits of the account's passwords
+		 * @param timeslotSeconds
+		 *        the length of the period one password stays valid, in seconds
+		 * @param secret
+		 *        the secret of the account
+		 */
+		public Writer add(final long accountId, final Algorithm algorithm,
+				final int numberOfDigits, final int timeslotSeconds, final byte... secret) {
+
+			if (algorithm == null) {
+				throw new NullPointerException("algorithm");
+			}
+			if (secret == null) {
+				throw new NullPointerException("secret");
+			}
+			if (secret.length == 0) {
+				throw new IllegalArgumentException("'secret' must contain at least one byte");
+			}
+			if (timeslotSeconds <= 0) {
+				throw new IllegalArgumentException("'timeslotSeconds' must be positive");
+			}
+			HmacBasedOneTimePassword.truncation(numberOfDigits);
+
+			final ByteBuffer record = ByteBuffer.allocate(RECORD_BYTES);
+			record.putLong(accountId);
+			record.put((byte) (algorithm.ordinal() + 1));
+			record.put((byte) numberOfDigits);
+			record.putShort((short) 0);
+			record.putInt(timeslotSeconds);
+
+			switch (algorithm) {
+			case SHA1: {
+				final int[] midstate = new int[HmacSha1.STATE_INTS];
+				HmacSha1.midstate(secret, midstate, 0);
+				for (final int word : midstate) {
+					record.putInt(word);
+				}
+				break;
+			}
+			case SHA256: {
+				final int[] midstate = new int[HmacSha256.STATE_INTS];
+				HmacSha256.midstate(secret, midstate, 0);
+				for (final int word : midstate) {
+					record.putInt(word);
+				}
+				break;
+			}
+			default: {
+				final long[] midstate = new long[HmacSha512.STATE_LONGS];
+				HmacSha512.midstate(secret, midstate, 0);
+				for (final long word : midstate) {
+					record.putLong(word);
+				}
+			}
+			}
+
+			if (size == records.length) {
+				accountIds = Arrays.copyOf(accountIds, 2 * size);
+				records = Arrays.copyOf(records, 2 * size);
+			}
+			accountIds[size] = accountId;
+			records[size] = record.array();
+			++size;
+
+			return this;
+		}
+
+		/**
+		 * Writes all accounts added so far, sorted by account id, to the given file.
+		 * <p>
+		 * The table is written to a temporary file in the same directory, which is then renamed
+		 * over the given file. Processes that have the previous file mapped keep reading it
+		 * unchanged, and a crash never leaves a partially written table behind.
+		 * 
+		 * @throws IllegalStateException
+		 *         if an account id was added more than once
+		 * @throws IOException
+		 *         if the file cannot be written
+		 */
+		public void write(final File file) throws IOException {
+			if (file == null) {
+				throw new NullPointerException("file");
+			}
+
+			final Integer[] order = new Integer[size];
+			for (int i = 0; i < size; ++i) {
+				order[i] = i;
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+				public int compare(final Integer a, final Integer b) {
+					final long x = accountIds[a];
+					final long y = accountIds[b];
+					return x < y ? -1 : x == y ? 0 : 1;
+				}
+			});
+			for (int i = 1; i < size; ++i) {
+				if (accountIds[order[i]] == accountIds[order[i - 1]]) {
+					throw new IllegalStateException("duplicate account id " + accountIds[order[i]]);
+				}
+			}
+
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+			header.putInt(MAGIC).putInt(VERSION).putInt(size).putInt(0).flip();
+
+			final File directory = file.getAbsoluteFile().getParentFile();
+			final File temporary = File.createTempFile(file.getName(), ".tmp", directory);
+			boolean written = false;
+
+			final FileOutputStream output = new FileOutputStream(temporary);
+			try {
+				final FileChannel channel = output.getChannel();
+				while (header.hasRemaining()) {
+					channel.write(header);
+				}
+				for (int i = 0; i < size; ++i) {
+					final ByteBuffer record = ByteBuffer.wrap(records[order[i]]);
+					while (record.hasRemaining()) {
+						channel.write(record);
+					}
+				}
+				channel.force(true);
+				written = true;
+			} finally {
+				output.close();
+
+				if (!written) {
+					temporary.delete();
+				}
+			}
+
+			// truncating the file in place would fault processes that have it mapped
+			if (!temporary.renameTo(file)) {
+				temporary.delete();
+				throw new IOException("cannot replace " + file);
+			}
+		}
+	}
+}
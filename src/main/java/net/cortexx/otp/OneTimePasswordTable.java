@@ -0,0 +1,41 @@
+/*
+ * Copyright 2013 Patrick Kelchner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.cortexx.otp;
+
+/**
+ * Generates HMAC-based one-time passwords for many accounts, each identified by an index.
+ * Implementations are thread-safe.
+ * 
+ * @see HmacBasedOneTimePasswordTable
+ * @see MappedSecretTable
+ * @see SecretArena
+ */
+public interface OneTimePasswordTable {
+	/**
+	 * Generates the password of the given account corresponding to the given counter.
+	 * 
+	 * @throws IndexOutOfBoundsException
+	 *         if there is no such account
+	 */
+	int generatePassword(int account, long counter);
+
+	/**
+	 * @return the number of digits of the passwords of the given account
+	 * @throws IndexOutOfBoundsException
+	 *         if there is no such account
+	 */
+	int getNumberOfDigits(int account);
+}
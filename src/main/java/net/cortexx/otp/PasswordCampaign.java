@@ -0,0 +1,413 @@
+/*
+ * Copyright 2013 Patrick Kelchner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.cortexx.otp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.cortexx.otp.HmacBasedOneTimePassword.Algorithm;
+
+/**
+ * Generates the currently valid time-based passwords of a stream of accounts, e.g. to send them
+ * by SMS or e-mail, and writes them as fixed-width records to a channel.
+ * Instances may be reused for several runs, but not concurrently.
+ * <p>
+ * Accounts are read in chunks on a background thread, their passwords computed in parallel
+ * straight from the secrets, without creating an {@link HmacBasedOneTimePassword} per account,
+ * and the records written in the order the accounts were read on the calling thread. A fixed
+ * number of chunks circulates between these stages, which bounds memory: reading stalls while
+ * all chunks wait to be computed or written, so a slow channel throttles the whole pipeline.
+ * <p>
+ * Each record consists of the account id as a big-endian long, followed by the password as
+ * ASCII digits, filled with leading zeros. The secrets read are overwritten with zeros once their
+ * password is computed.
+ */
+public final class PasswordCampaign {
+	/**
+	 * Supplies the accounts of a campaign.
+	 */
+	public interface Source {
+		/**
+		 * Reads the next accounts.
+		 * 
+		 * @param accountIds
+		 *        receives the ids of the accounts read, starting at index 0
+		 * @param secrets
+		 *        receives the secrets of the accounts read, starting at index 0, which are
+		 *        overwritten with zeros after use; each must contain at least one byte, or the
+		 *        run fails
+		 * @return the number of accounts read, at most the length of the arrays, or -1 if there are
+		 *         no more accounts
+		 */
+		int read(long[] accountIds, byte[][] secrets) throws IOException;
+	}
+
+	private static final int FREE = 0;
+	private static final int FILLED = 1;
+	private static final int COMPUTED = 2;
+
+	private final TimeBasedOneTimePassword totp;
+	private final Algorithm algorithm;
+	private final int digits;
+	private final int truncation;
+	private final int recordBytes;
+	private final int chunkSize;
+	private final int parallelism;
+
+	private final AtomicLong written = new AtomicLong();
+	private volatile long startNanos;
+	private volatile long endNanos;
+
+	/**
+	 * @param totp
+	 *        the time-based parameters, determining the current timeslot
+	 * @param algorithm
+	 *        the algorithm to use for hashing
+	 * @param numberOfDigits
+	 *        the number of digits of the generated passwords
+	 * @param chunkSize
+	 *        the number of accounts read, computed and written at once
+	 * @param parallelism
+	 *        the number of threads computing passwords
+	 */
+	public PasswordCampaign(final TimeBasedOneTimePassword totp, final Algorithm algorithm,
+			final int numberOfDigits, final int chunkSize, final int parallelism) {
+
+		if (totp == null) {
+			throw new NullPointerException("totp");
+		}
+		if (algorithm == null) {
+			throw new NullPointerException("algorithm");
+		}
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("'chunkSize' must be positive");
+		}
+		if (parallelism <= 0) {
+			throw new IllegalArgumentException("'parallelism' must be positive");
+		}
+
+		this.totp = totp;
+		this.algorithm = algorithm;
+		this.digits = numberOfDigits;
+		this.truncation = HmacBasedOneTimePassword.truncation(numberOfDigits);
+		this.recordBytes = 8 + numberOfDigits;
+		this.chunkSize = chunkSize;
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * @return the length of a record in bytes
+	 */
+	public int getRecordBytes() {
+		return recordBytes;
+	}
+
+	/**
+	 * @return the number of records written by the current or last run
+	 */
+	public long getWrittenCount() {
+		return written.get();
+	}
+
+	/**
+	 * @return the number of records written per second by the current or last run
+	 */
+	public double getThroughput() {
+		final long start = startNanos;
+		final long stop = endNanos == 0 ? System.nanoTime() : endNanos;
+
+		return start == 0 || stop <= start ? 0 : written.get() * 1e9 / (stop - start);
+	}
+
+	/**
+	 * Reads all accounts from the given source and writes their records to the given channel.
+	 * 
+	 * @return the number of records written
+	 * @throws IOException
+	 *         if reading or writing fails; the run is aborted
+	 */
+	public long run(final Source source, final WritableByteChannel channel) throws IOException {
+		if (source == null) {
+			throw new NullPointerException("source");
+		}
+		if (channel == null) {
+			throw new NullPointerException("channel");
+		}
+
+		written.set(0);
+		endNanos = 0;
+		startNanos = System.nanoTime();
+
+		try {
+			new Pipeline().run(source, channel);
+		} finally {
+			endNanos = System.nanoTime();
+		}
+
+		return written.get();
+	}
+
+	/**
+	 * The state of one run. Threads of an aborted run that are still blocked in the source never
+	 * interfere with later runs.
+	 */
+	private final class Pipeline {
+		private final Chunk[] chunks;
+		private final BlockingQueue<Chunk> filled = new LinkedBlockingQueue<Chunk>();
+
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Condition changed = lock.newCondition();
+		private long end = Long.MAX_VALUE;
+		private Throwable failure;
+
+		Pipeline() {
+			// enough to keep every thread busy while one chunk is read and one written
+			chunks = new Chunk[2 * parallelism + 2];
+			for (int i = 0; i < chunks.length; ++i) {
+				chunks[i] = new Chunk(chunkSize, recordBytes);
+			}
+		}
+
+		void run(final Source source, final WritableByteChannel channel) throws IOException {
+			final Thread[] threads = new Thread[parallelism + 1];
+
+			threads[0] = new Thread(new Runnable() {
+				public void run() {
+					read(source);
+				}
+			}, "otp-campaign-reader");
+
+			for (int i = 1; i < threads.length; ++i) {
+				threads[i] = new Thread(new Runnable() {
+					public void run() {
+						compute();
+					}
+				}, "otp-campaign-" + i);
+			}
+
+			for (int i = 0; i < threads.length; ++i) {
+				threads[i].setDaemon(true);
+				threads[i].start();
+			}
+
+			try {
+				write(channel);
+			} finally {
+				fail(null);
+				for (int i = 0; i < threads.length; ++i) {
+					threads[i].interrupt();
+				}
+			}
+		}
+
+		private void read(final Source source) {
+			try {
+				for (long sequence = 0;; ++sequence) {
+					final Chunk chunk = chunks[(int) (sequence % chunks.length)];
+
+					if (!await(chunk, FREE)) {
+						return;
+					}
+
+					final int count = source.read(chunk.accountIds, chunk.secrets);
+					if (count < 0) {
+						lock.lock();
+						try {
+							end = sequence;
+							changed.signalAll();
+						} finally {
+							lock.unlock();
+						}
+						return;
+					}
+					if (count > chunk.accountIds.length) {
+						throw new IllegalStateException("source read more accounts than requested");
+					}
+					for (int i = 0; i < count; ++i) {
+						if (chunk.secrets[i] == null || chunk.secrets[i].length == 0) {
+							wipe(chunk, count);
+							throw new IllegalArgumentException("'secret' must contain at least one byte");
+						}
+					}
+
+					chunk.count = count;
+					set(chunk, FILLED);
+					filled.add(chunk);
+				}
+			} catch (final Throwable e) {
+				fail(e);
+			}
+		}
+
+		private void compute() {
+			final int[] intState = new int[HmacSha256.STATE_INTS];
+			final long[] longState = new long[HmacSha512.STATE_LONGS];
+
+			try {
+				while (true) {
+					final Chunk chunk = filled.take();
+					final long timeslot = totp.currentTimeslot();
+					final byte[] records = chunk.records.array();
+
+					for (int i = 0; i < chunk.count; ++i) {
+						final byte[] secret = chunk.secrets[i];
+						chunk.secrets[i] = null;
+
+						int password;
+						switch (algorithm) {
+						case SHA1:
+							HmacSha1.midstate(secret, intState, 0);
+							password = HmacSha1.truncatedHash(intState, 0, timeslot, HmacSha1.SCRATCH.get());
+							break;
+						case SHA256:
+							HmacSha256.midstate(secret, intState, 0);
+							password = HmacSha256.truncatedHash(intState, 0, timeslot, HmacSha256.SCRATCH.get());
+							break;
+						default:
+							HmacSha512.midstate(secret, longState, 0);
+							password = HmacSha512.truncatedHash(longState, 0, timeslot, HmacSha512.SCRATCH.get());
+							break;
+						}
+						Arrays.fill(secret, (byte) 0);
+						password %= truncation;
+
+						final int offset = i * recordBytes;
+						chunk.records.putLong(offset, chunk.accountIds[i]);
+						for (int j = offset + recordBytes - 1; j >= offset + 8; --j) {
+							records[j] = (byte) ('0' + password % 10);
+							password /= 10;
+						}
+					}
+
+					Arrays.fill(intState, 0);
+					Arrays.fill(longState, 0);
+					set(chunk, COMPUTED);
+				}
+			} catch (final InterruptedException e) {
+				// run finished
+			} catch (final Throwable e) {
+				fail(e);
+			}
+		}
+
+		private void write(final WritableByteChannel channel) throws IOException {
+			for (long sequence = 0;; ++sequence) {
+				final Chunk chunk = chunks[(int) (sequence % chunks.length)];
+
+				lock.lock();
+				try {
+					while (chunk.state != COMPUTED && sequence < end && failure == null) {
+						changed.awaitUninterruptibly();
+					}
+					if (failure != null) {
+						if (failure instanceof IOException) {
+							throw (IOException) failure;
+						}
+						throw new IOException("campaign failed", failure);
+					}
+					if (sequence >= end) {
+						return;
+					}
+				} finally {
+					lock.unlock();
+				}
+
+				final ByteBuffer records = chunk.records;
+				records.clear().limit(chunk.count * recordBytes);
+				while (records.hasRemaining()) {
+					channel.write(records);
+				}
+
+				written.addAndGet(chunk.count);
+				set(chunk, FREE);
+			}
+		}
+
+		/**
+		 * @return <code>false</code> if the run has failed
+		 */
+		private boolean await(final Chunk chunk, final int state) throws InterruptedException {
+			lock.lock();
+			try {
+				while (chunk.state != state && failure == null) {
+					changed.await();
+				}
+				return failure == null;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private void set(final Chunk chunk, final int state) {
+			lock.lock();
+			try {
+				chunk.state = state;
+				changed.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Overwrites the first <code>count</code> secrets of a chunk with zeros and drops them.
+		 */
+		private void wipe(final Chunk chunk, final int count) {
+			for (int i = 0; i < count; ++i) {
+				if (chunk.secrets[i] != null) {
+					Arrays.fill(chunk.secrets[i], (byte) 0);
+					chunk.secrets[i] = null;
+				}
+			}
+		}
+
+		/**
+		 * Aborts the run, given <code>null</code> once it has finished.
+		 */
+		private void fail(final Throwable e) {
+			lock.lock();
+			try {
+				if (failure == null) {
+					failure = e != null ? e : new IllegalStateException("finished");
+				}
+				changed.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	private static final class Chunk {
+		final long[] accountIds;
+		final byte[][] secrets;
+		final ByteBuffer records;
+		int count;
+		/** guarded by the lock */
+		int state;
+
+		Chunk(final int size, final int recordBytes) {
+			this.accountIds = new long[size];
+			this.secrets = new byte[size][];
+			this.records = ByteBuffer.allocate(size * recordBytes);
+		}
+	}
+}
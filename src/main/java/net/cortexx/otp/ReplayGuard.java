@@ -0,0 +1,99 @@
+/*
+ * Copyright 2013 Patrick Kelchner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.cortexx.otp;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Remembers the last timeslot in which a password was accepted for each of a fixed number of
+ * accounts, so that a time-based password can be used only once.
+ * This type is thread-safe and lock-free.
+ * <p>
+ * Accounts are identified by index, typically the same as in a {@link OneTimePasswordTable}.
+ * The last accepted timeslots are packed into one array of longs and advanced by
+ * compare-and-set, so concurrent submissions of the same password are linearizable: exactly one
+ * of them is accepted.
+ * 
+ * @see TimeBasedOneTimePassword#validateAndConsume(int, HmacBasedOneTimePassword, ReplayGuard, int)
+ * @see TimeBasedOneTimePassword#validateAndConsume(int, OneTimePasswordTable, int, ReplayGuard)
+ */
+public final class ReplayGuard {
+	/**
+	 * The last accepted timeslot of an account that never had a password accepted.
+	 */
+	public static final long NONE = Long.MIN_VALUE;
+
+	private final AtomicLongArray timeslots;
+
+	/**
+	 * @param capacity
+	 *        the number of accounts
+	 */
+	public ReplayGuard(final int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("'capacity' must be positive");
+		}
+
+		this.timeslots = new AtomicLongArray(capacity);
+
+		for (int i = 0; i < capacity; ++i) {
+			timeslots.set(i, NONE);
+		}
+	}
+
+	/**
+	 * @return the number of accounts
+	 */
+	public int getCapacity() {
+		return timeslots.length();
+	}
+
+	/**
+	 * @return the last timeslot in which a password of the given account was accepted, or
+	 *         {@link #NONE}
+	 */
+	public long getLastAccepted(final int account) {
+		return timeslots.get(account);
+	}
+
+	/**
+	 * Accepts a password of the given account in the given timeslot, unless one was already
+	 * accepted in this or a later timeslot.
+	 * 
+	 * @return <code>true</code> if the timeslot was consumed by this call, <code>false</code> if
+	 *         it had already been consumed
+	 */
+	public boolean consume(final int account, final long timeslot) {
+		long last = timeslots.get(account);
+
+		while (last < timeslot) {
+			if (timeslots.compareAndSet(account, last, timeslot)) {
+				return true;
+			}
+			last = timeslots.get(account);
+		}
+
+		return false;
+	}
+
+	/**
+	 * Forgets the last accepted timeslot of the given account, e.g. when its index is reused for
+	 * another account.
+	 */
+	public void reset(final int account) {
+		timeslots.set(account, NONE);
+	}
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright 2013 Patrick Kelchner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.cortexx.otp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.cortexx.otp.HmacBasedOneTimePassword.Algorithm;
+
+/**
+ * Keeps the key material of many accounts off the Java heap, in one direct buffer of fixed
+ * capacity, and wipes it deterministically.
+ * This type is thread-safe.
+ * <p>
+ * Only the precomputed HMAC midstates of the accounts' secrets are stored, never the secrets
+ * themselves. The garbage collector neither scans nor moves them, so they leave no stray copies
+ * behind. {@link #remove(int)} overwrites an account's midstates with zeros immediately, and
+ * {@link #close()} does so for all accounts.
+ * <p>
+ * Passwords are computed by the pure-Java HMACs. While they run, an account's midstates are
+ * copied into working memory kept per thread, which is wiped again before returning.
+ * <p>
+ * Generating passwords takes no lock. Every account slot carries a stamp that
+ * {@link #add(byte...)}, {@link #remove(int)} and {@link #close()} change before touching the
+ * slot's midstates; {@link #generatePassword(int, long)} reads the stamp before and after
+ * copying the midstates and starts over if it has changed in between.
+ */
+public final class SecretArena implements OneTimePasswordTable {
+	private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
+	/**
+	 * Set in the stamp of a slot holding an account. Each change of a slot increments its stamp.
+	 */
+	private static final int LIVE = 1;
+
+	private final Algorithm algorithm;
+	private final int digits;
+	private final int truncation;
+	private final int stateBytes;
+
+	private final Lock lock = new ReentrantLock();
+	private final ByteBuffer states;
+	private final AtomicIntegerArray stamps;
+	private final int[] free;
+	private int freeCount;
+	private volatile boolean closed;
+
+	/**
+	 * @param algorithm
+	 *        the algorithm to use for hashing
+	 * @param numberOfDigits
+	 *        the number of digits of the generated passwords
+	 * @param capacity
+	 *        the maximum number of accounts held at the same time
+	 */
+	public SecretArena(final Algorithm algorithm, final int numberOfDigits, final int capacity) {
+		if (algorithm == null) {
+			throw new NullPointerException("algorithm");
+		}
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("'capacity' must be positive");
+		}
+
+		this.algorithm = algorithm;
+		this.digits = numberOfDigits;
+		this.truncation = HmacBasedOneTimePassword.truncation(numberOfDigits);
+
+		switch (algorithm) {
+		case SHA1:
+			stateBytes = 4 * HmacSha1.STATE_INTS;
+			break;
+		case SHA256:
+			stateBytes = 4 * HmacSha256.STATE_INTS;
+			break;
+		case SHA512:
+			stateBytes = 8 * HmacSha512.STATE_LONGS;
+			break;
+		default:
+			throw new IllegalArgumentException(String.valueOf(algorithm));
+		}
+		if (capacity > Integer.MAX_VALUE / stateBytes) {
+			throw new IllegalArgumentException("'capacity' must not exceed " + Integer.MAX_VALUE / stateBytes
+					+ " for " + algorithm);
+		}
+
+		this.states = ByteBuffer.allocateDirect(capacity * stateBytes);
+		this.stamps = new AtomicIntegerArray(capacity);
+		this.free = new int[capacity];
+
+		for (int i = 0; i < capacity; ++i) {
+			free[i] = capacity - 1 - i;
+		}
+		freeCount = capacity;
+	}
+
+	/**
+	 * @return the algorithm used for hashing
+	 */
+	public Algorithm getAlgorithm() {
+		return algorithm;
+	}
+
+	public int getNumberOfDigits(final int account) {
+		check(account);
+		return digits;
+	}
+
+	/**
+	 * Adds an account. The caller remains responsible for wiping the given secret.
+	 * 
+	 * @return the index identifying the account until it is removed
+	 * @throws IllegalStateException
+	 *         if the arena is full or closed
+	 */
+	public int add(final byte... secret) {
+		if (secret == null) {
+			throw new NullPointerException("secret");
+		}
+		if (secret.length == 0) {
+			throw new IllegalArgumentException("'secret' must contain at least one byte");
+		}
+
+		lock.lock();
+		try {
+			if (closed) {
+				throw new IllegalStateException("closed");
+			}
+			if (freeCount == 0) {
+				throw new IllegalStateException("full");
+			}
+
+			final int account = free[--freeCount];
+			final int position = account * stateBytes;
+			final Scratch scratch = SCRATCH.get();
+
+			if (algorithm == Algorithm.SHA512) {
+				HmacSha512.midstate(secret, scratch.longs, 0);
+				for (int i = 0; i < HmacSha512.STATE_LONGS; ++i) {
+					states.putLong(position + 8 * i, scratch.longs[i]);
+				}
+			} else {
+				if (algorithm == Algorithm.SHA1) {
+					HmacSha1.midstate(secret, scratch.ints, 0);
+				} else {
+					HmacSha256.midstate(secret, scratch.ints, 0);
+				}
+				for (int i = 0; i < stateBytes / 4; ++i) {
+					states.putInt(position + 4 * i, scratch.ints[i]);
+				}
+			}
+			scratch.clear();
+
+			// publishes the midstates written above
+			stamps.incrementAndGet(account);
+			return account;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes an account, overwriting its key material with zeros. The index may be handed out
+	 * again by {@link #add(byte...)}.
+	 */
+	public void remove(final int account) {
+		lock.lock();
+		try {
+			check(account);
+
+			// invalidates the copies of concurrent readers before the midstates are overwritten
+			stamps.incrementAndGet(account);
+			wipe(account * stateBytes, stateBytes);
+			free[freeCount++] = account;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Overwrites the key material of all accounts with zeros and rejects any further use of this
+	 * arena. Has no effect if already closed.
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			if (!closed) {
+				closed = true;
+				for (int account = 0; account < stamps.length(); ++account) {
+					if ((stamps.get(account) & LIVE) != 0) {
+						stamps.incrementAndGet(account);
+					}
+				}
+				wipe(0, states.capacity());
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int generatePassword(final int account, final long counter) {
+		final Scratch scratch = SCRATCH.get();
+		final int position = account * stateBytes;
+
+		for (;;) {
+			final int stamp = check(account);
+
+			if (algorithm == Algorithm.SHA512) {
+				for (int i = 0; i < HmacSha512.STATE_LONGS; ++i) {
+					scratch.longs[i] = states.getLong(position + 8 * i);
+				}
+			} else {
+				for (int i = 0; i < stateBytes / 4; ++i) {
+					scratch.ints[i] = states.getInt(position + 4 * i);
+				}
+			}
+
+			// the volatile write keeps the copy above from moving past the second read of the stamp
+			scratch.fence = stamp;
+			if (stamps.get(account) == stamp) {
+				break;
+			}
+			scratch.clear();
+		}
+
+		try {
+			switch (algorithm) {
+			case SHA1:
+				return HmacSha1.truncatedHash(scratch.ints, 0, counter, HmacSha1.SCRATCH.get()) % truncation;
+			case SHA256:
+				return HmacSha256.truncatedHash(scratch.ints, 0, counter, HmacSha256.SCRATCH.get()) % truncation;
+			default:
+				return HmacSha512.truncatedHash(scratch.longs, 0, counter, HmacSha512.SCRATCH.get()) % truncation;
+			}
+		} finally {
+			scratch.clear();
+		}
+	}
+
+	private void wipe(final int position, final int length) {
+		for (int i = position; i < position + length; i += 4) {
+			states.putInt(i, 0);
+		}
+	}
+
+	/**
+	 * @return the current stamp of the account's slot
+	 */
+	private int check(final int account) {
+		if (closed) {
+			throw new IllegalStateException("closed");
+		}
+		if (account < 0 || account >= stamps.length()) {
+			throw new IndexOutOfBoundsException("account " + account);
+		}
+
+		final int stamp = stamps.get(account);
+		if ((stamp & LIVE) == 0) {
+			if (closed) {
+				throw new IllegalStateException("closed");
+			}
+			throw new IndexOutOfBoundsException("account " + account);
+		}
+		return stamp;
+	}
+
+	/**
+	 * Working memory of one thread, holding a copy of an account's midstates.
+	 */
+	private static final class Scratch {
+		final int[] ints = new int[HmacSha256.STATE_INTS];
+		final long[] longs = new long[HmacSha512.STATE_LONGS];
+		volatile int fence;
+
+		void clear() {
+			for (int i = 0; i < ints.length; ++i) {
+				ints[i] = 0;
+			}
+			for (int i = 0; i < longs.length; ++i) {
+				longs[i] = 0;
+			}
+		}
+	}
+}
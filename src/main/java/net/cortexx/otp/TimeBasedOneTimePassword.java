@@ -16,7 +16,9 @@
 package net.cortexx.otp;
 
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
+import java.nio.ByteBuffer;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -28,8 +30,16 @@ import java.util.concurrent.TimeUnit;
  * instance of this class per set of parameters in use by the system.
  */
 public final class TimeBasedOneTimePassword {
+	/**
+	 * Returned by the <code>match</code> methods if the password matches no timeslot of the
+	 * validation window.
+	 */
+	public static final int NO_MATCH = Integer.MIN_VALUE;
+
 	private final long slotMillis;
-	private final int variance;
+	private final WindowPolicy window;
+	private final int[] order;
+	private final TimeSource clock;
 
 	/**
 	 * @param timeslotLength
@@ -41,23 +51,78 @@ public final class TimeBasedOneTimePassword {
 	 *        valid.
 	 *        This mitigates time-differences between the authenticating party and the authenticated
 	 *        party.
+	 * @see WindowPolicy#symmetric(int)
 	 */
 	public TimeBasedOneTimePassword(
 			final long timeslotLength, final TimeUnit timeslotLengthUnit,
 			final int timeslotVariance) {
 
+		this(timeslotLength, timeslotLengthUnit, symmetric(timeslotVariance));
+	}
+
+	/**
+	 * @param timeslotLength
+	 *        the length of the period one password stays valid
+	 * @param timeslotLengthUnit
+	 *        the unit of the length of the period
+	 * @param window
+	 *        the periods around the current period that are also considered valid, and the order
+	 *        they are tried in
+	 */
+	public TimeBasedOneTimePassword(
+			final long timeslotLength, final TimeUnit timeslotLengthUnit,
+			final WindowPolicy window) {
+
+		this(timeslotLength, timeslotLengthUnit, window, TimeSource.SYSTEM);
+	}
+
+	/**
+	 * @param timeslotLength
+	 *        the length of the period one password stays valid
+	 * @param timeslotLengthUnit
+	 *        the unit of the length of the period
+	 * @param window
+	 *        the periods around the current period that are also considered valid, and the order
+	 *        they are tried in
+	 * @param clock
+	 *        determines the current period
+	 */
+	public TimeBasedOneTimePassword(
+			final long timeslotLength, final TimeUnit timeslotLengthUnit,
+			final WindowPolicy window, final TimeSource clock) {
+
 		if (timeslotLengthUnit == null) {
 			throw new NullPointerException("timeslotLengthUnit");
 		}
+		if (window == null) {
+			throw new NullPointerException("window");
+		}
+		if (clock == null) {
+			throw new NullPointerException("clock");
+		}
 		if (timeslotLength <= 0) {
 			throw new IllegalArgumentException("'timeslotLength' must be positive");
 		}
+
+		this.slotMillis = MILLISECONDS.convert(timeslotLength, timeslotLengthUnit);
+		this.window = window;
+		this.order = window.getOrder();
+		this.clock = clock;
+	}
+
+	private static WindowPolicy symmetric(final int timeslotVariance) {
 		if (timeslotVariance <= 0) {
 			throw new IllegalArgumentException("'timeslotVariance' must be positive");
 		}
 
-		this.slotMillis = MILLISECONDS.convert(timeslotLength, timeslotLengthUnit);
-		this.variance = timeslotVariance;
+		return WindowPolicy.symmetric(timeslotVariance);
+	}
+
+	/**
+	 * @return the periods around the current period that are also considered valid
+	 */
+	public final WindowPolicy getWindowPolicy() {
+		return window;
 	}
 
 	/**
@@ -70,10 +135,49 @@ public final class TimeBasedOneTimePassword {
 	 * @return <code>true</code> if the given password is valid, <code>false</code> if not.
 	 */
 	public final boolean validate(final int password, final HmacBasedOneTimePassword otp) {
-		long timeslot = System.currentTimeMillis() / slotMillis;
+		return match(password, otp) != NO_MATCH;
+	}
+
+	/**
+	 * Finds the timeslot of the validation window in which the given password is valid.
+	 * 
+	 * @param password
+	 *        the password to be validated
+	 * @param otp
+	 *        the one-time password to validate against
+	 * @return the offset of the matching timeslot from the current one, or {@link #NO_MATCH}
+	 * @see ClockDriftEstimator
+	 */
+	public final int match(final int password, final HmacBasedOneTimePassword otp) {
+		final long timeslot = currentTimeslot();
+
+		for (int i = 0; i < order.length; ++i) {
+			final int offset = order[i];
+			if (password == otp.generatePassword(timeslot + offset)) {
+				return offset;
+			}
+		}
+
+		return NO_MATCH;
+	}
 
-		for (int i = -variance; i <= variance; ++i) {
-			if (password == otp.generatePassword(timeslot + i)) {
+	/**
+	 * Validates that the given password is the currently valid password, taking the passwords of
+	 * the validation window from the given cache.
+	 * 
+	 * @param password
+	 *        the password to be validated
+	 * @param cache
+	 *        the cached passwords of the one-time password to validate against
+	 * @return <code>true</code> if the given password is valid, <code>false</code> if not.
+	 * @see #createCache(HmacBasedOneTimePassword)
+	 */
+	public final boolean validate(final int password, final TimeslotCache cache) {
+		final long timeslot = currentTimeslot();
+
+		for (int i = 0; i < order.length; ++i) {
+			final int offset = order[i];
+			if (password == cache.getPassword(timeslot + offset)) {
 				return true;
 			}
 		}
@@ -81,6 +185,336 @@ public final class TimeBasedOneTimePassword {
 		return false;
 	}
 
+	/**
+	 * Validates that the given password is the currently valid password of an account in the
+	 * given table.
+	 * 
+	 * @param password
+	 *        the password to be validated
+	 * @param table
+	 *        the table holding the account
+	 * @param account
+	 *        the index of the account in <code>table</code>
+	 * @return <code>true</code> if the given password is valid, <code>false</code> if not.
+	 * @throws IllegalArgumentException
+	 *         if <code>table</code> is a {@link MappedSecretTable} and the timeslot length of the
+	 *         record differs from the one of this instance
+	 */
+	public final boolean validate(final int password, final OneTimePasswordTable table, final int account) {
+		return match(password, table, account) != NO_MATCH;
+	}
+
+	/**
+	 * Finds the timeslot of the validation window in which the given password is valid for an
+	 * account in the given table.
+	 * 
+	 * @param password
+	 *        the password to be validated
+	 * @param table
+	 *        the table holding the account
+	 * @param account
+	 *        the index of the account in <code>table</code>
+	 * @return the offset of the matching timeslot from the current one, or {@link #NO_MATCH}
+	 * @throws IllegalArgumentException
+	 *         if <code>table</code> is a {@link MappedSecretTable} and the timeslot length of the
+	 *         record differs from the one of this instance
+	 */
+	public final int match(final int password, final OneTimePasswordTable table, final int account) {
+		return match(password, table, account, currentTimeslot());
+	}
+
+	/**
+	 * Validates that the given password was valid for an account in the given table at the given
+	 * time, e.g. when replaying an audit log. The time source of this instance is not consulted.
+	 * 
+	 * @param password
+	 *        the password to be validated
+	 * @param table
+	 *        the table holding the account
+	 * @param account
+	 *        the index of the account in <code>table</code>
+	 * @param timeMillis
+	 *        the time of validation in milliseconds since the epoch
+	 * @return <code>true</code> if the given password was valid, <code>false</code> if not.
+	 * @throws IllegalArgumentException
+	 *         if <code>table</code> is a {@link MappedSecretTable} and the timeslot length of the
+	 *         record differs from the one of this instance
+	 */
+	public final boolean validate(final int password, final OneTimePasswordTable table,
+			final int account, final long timeMillis) {
+
+		if (timeMillis < 0) {
+			throw new IllegalArgumentException("'timeMillis' must not be negative");
+		}
+
+		return match(password, table, account, timeMillis / slotMillis) != NO_MATCH;
+	}
+
+	private int match(final int password, final OneTimePasswordTable table, final int account,
+			final long timeslot) {
+
+		checkTimeslotLength(table, account);
+
+		for (int i = 0; i < order.length; ++i) {
+			final int offset = order[i];
+			if (password == table.generatePassword(account, timeslot + offset)) {
+				return offset;
+			}
+		}
+
+		return NO_MATCH;
+	}
+
+	/**
+	 * Validates that the given password is the currently valid password of a record in the given
+	 * mapped table.
+	 * 
+	 * @param password
+	 *        the password to be validated
+	 * @param table
+	 *        the table holding the record
+	 * @param record
+	 *        the index of the record in <code>table</code>, see {@link MappedSecretTable#find(long)}
+	 * @return <code>true</code> if the given password is valid, <code>false</code> if not.
+	 * @throws IllegalArgumentException
+	 *         if the timeslot length of the record differs from the one of this instance
+	 */
+	public final boolean validate(final int password, final MappedSecretTable table, final int record) {
+		return validate(password, (OneTimePasswordTable) table, record);
+	}
+
+	/**
+	 * Rejects a record of a {@link MappedSecretTable} whose timeslot length differs from the one of
+	 * this instance. Called by every path validating against a table, since other tables do not
+	 * record a timeslot length.
+	 */
+	final void checkTimeslotLength(final OneTimePasswordTable table, final int account) {
+		if (table instanceof MappedSecretTable
+				&& SECONDS.toMillis(((MappedSecretTable) table).getTimeslotSeconds(account)) != slotMillis) {
+			throw new IllegalArgumentException("record " + account + " has a different timeslot length");
+		}
+	}
+
+	/**
+	 * Validates that the given password is the currently valid password and has not been
+	 * accepted before, and consumes it.
+	 * <p>
+	 * Once a password was accepted in a timeslot, passwords of that and all earlier timeslots are
+	 * rejected for the account. Of concurrent calls with the same password, at most one succeeds.
+	 * 
+	 * @param password
+	 *        the password to be validated
+	 * @param otp
+	 *        the one-time password to validate against
+	 * @param guard
+	 *        the last accepted timeslots
+	 * @param account
+	 *        the index of the account in <code>guard</code>
+	 * @return <code>true</code> if the given password is valid and was consumed by this call,
+	 *         <code>false</code> if not.
+	 */
+	public final boolean validateAndConsume(final int password, final HmacBasedOneTimePassword otp,
+			final ReplayGuard guard, final int account) {
+
+		final long timeslot = currentTimeslot();
+		final long last = guard.getLastAccepted(account);
+
+		for (int i = 0; i < order.length; ++i) {
+			final int offset = order[i];
+			if (timeslot + offset > last && password == otp.generatePassword(timeslot + offset)
+					&& guard.consume(account, timeslot + offset)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Validates that the given password is the currently valid password of an account in the
+	 * given table and has not been accepted before, and consumes it.
+	 * 
+	 * @param password
+	 *        the password to be validated
+	 * @param table
+	 *        the table holding the account
+	 * @param account
+	 *        the index of the account in both <code>table</code> and <code>guard</code>
+	 * @param guard
+	 *        the last accepted timeslots
+	 * @return <code>true</code> if the given password is valid and was consumed by this call,
+	 *         <code>false</code> if not.
+	 * @see #validateAndConsume(int, HmacBasedOneTimePassword, ReplayGuard, int)
+	 * @throws IllegalArgumentException
+	 *         if <code>table</code> is a {@link MappedSecretTable} and the timeslot length of the
+	 *         record differs from the one of this instance
+	 */
+	public final boolean validateAndConsume(final int password, final OneTimePasswordTable table,
+			final int account, final ReplayGuard guard) {
+
+		checkTimeslotLength(table, account);
+
+		final long timeslot = currentTimeslot();
+		final long last = guard.getLastAccepted(account);
+
+		for (int i = 0; i < order.length; ++i) {
+			final int offset = order[i];
+			if (timeslot + offset > last
+					&& password == table.generatePassword(account, timeslot + offset)
+					&& guard.consume(account, timeslot + offset)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Creates a cache large enough to hold the whole validation window of the given one-time
+	 * password, plus the timeslot entering the window next so that it can be prepared ahead of
+	 * time by a {@link TimeslotPrefetcher}.
+	 * 
+	 * @param otp
+	 *        the one-time password to cache the passwords of
+	 * @return a cache to be passed to {@link #validate(int, TimeslotCache)}
+	 */
+	public final TimeslotCache createCache(final HmacBasedOneTimePassword otp) {
+		return new TimeslotCache(otp, order.length + 1);
+	}
+
+	/**
+	 * Validates that the given decimal digits are the currently valid password.
+	 * <p>
+	 * The password must consist of exactly as many digits as <code>otp</code> generates, including
+	 * leading zeros.
+	 * 
+	 * @param password
+	 *        the digits to be validated
+	 * @param otp
+	 *        the one-time password to validate against
+	 * @return <code>true</code> if the given password is valid, <code>false</code> if not.
+	 */
+	public final boolean validate(final CharSequence password, final HmacBasedOneTimePassword otp) {
+		if (password == null) {
+			throw new NullPointerException("password");
+		}
+
+		final int length = password.length();
+		if (length != otp.getNumberOfDigits()) {
+			return false;
+		}
+
+		int value = 0;
+		for (int i = 0; i < length; ++i) {
+			final int digit = password.charAt(i) - '0';
+			if (digit < 0 || digit > 9) {
+				return false;
+			}
+			value = value * 10 + digit;
+		}
+
+		return validate(value, otp);
+	}
+
+	/**
+	 * Validates that the given ASCII digits are the currently valid password.
+	 * <p>
+	 * The password must consist of exactly as many digits as <code>otp</code> generates, including
+	 * leading zeros.
+	 * 
+	 * @param password
+	 *        contains the digits to be validated
+	 * @param offset
+	 *        the index of the first digit
+	 * @param length
+	 *        the number of digits
+	 * @param otp
+	 *        the one-time password to validate against
+	 * @return <code>true</code> if the given password is valid, <code>false</code> if not.
+	 */
+	public final boolean validate(final byte[] password, final int offset, final int length,
+			final HmacBasedOneTimePassword otp) {
+
+		if (password == null) {
+			throw new NullPointerException("password");
+		}
+		if (offset < 0 || length < 0 || length > password.length - offset) {
+			throw new IndexOutOfBoundsException();
+		}
+		if (length != otp.getNumberOfDigits()) {
+			return false;
+		}
+
+		int value = 0;
+		for (int i = offset; i < offset + length; ++i) {
+			final int digit = password[i] - '0';
+			if (digit < 0 || digit > 9) {
+				return false;
+			}
+			value = value * 10 + digit;
+		}
+
+		return validate(value, otp);
+	}
+
+	/**
+	 * Validates that the given ASCII digits are the currently valid password.
+	 * The position and limit of the buffer are not modified.
+	 * <p>
+	 * The password must consist of exactly as many digits as <code>otp</code> generates, including
+	 * leading zeros.
+	 * 
+	 * @param password
+	 *        contains the digits to be validated
+	 * @param offset
+	 *        the absolute index of the first digit
+	 * @param length
+	 *        the number of digits
+	 * @param otp
+	 *        the one-time password to validate against
+	 * @return <code>true</code> if the given password is valid, <code>false</code> if not.
+	 */
+	public final boolean validate(final ByteBuffer password, final int offset, final int length,
+			final HmacBasedOneTimePassword otp) {
+
+		if (password == null) {
+			throw new NullPointerException("password");
+		}
+		if (offset < 0 || length < 0 || length > password.limit() - offset) {
+			throw new IndexOutOfBoundsException();
+		}
+		if (length != otp.getNumberOfDigits()) {
+			return false;
+		}
+
+		int value = 0;
+		for (int i = offset; i < offset + length; ++i) {
+			final int digit = password.get(i) - '0';
+			if (digit < 0 || digit > 9) {
+				return false;
+			}
+			value = value * 10 + digit;
+		}
+
+		return validate(value, otp);
+	}
+
+	final long getSlotMillis() {
+		return slotMillis;
+	}
+
+	final int[] getOrder() {
+		return order;
+	}
+
+	final TimeSource getTimeSource() {
+		return clock;
+	}
+
+	final long currentTimeslot() {
+		return clock.currentTimeslot(slotMillis);
+	}
+
 	/**
 	 * Generates the currently valid password
 	 * 
@@ -90,7 +524,7 @@ public final class TimeBasedOneTimePassword {
 	 *         the currently valid password
 	 */
 	public final int generatePassword(final HmacBasedOneTimePassword otp) {
-		return otp.generatePassword(System.currentTimeMillis() / slotMillis);
+		return otp.generatePassword(currentTimeslot());
 	}
 
 	/**
@@ -103,6 +537,6 @@ public final class TimeBasedOneTimePassword {
 	 *         the currently valid password
 	 */
 	public final String generatePasswordString(final HmacBasedOneTimePassword otp) {
-		return otp.generatePasswordString(System.currentTimeMillis() / slotMillis);
+		return otp.generatePasswordString(currentTimeslot());
 	}
 }
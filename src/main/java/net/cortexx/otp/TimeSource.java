@@ -0,0 +1,58 @@
+/*
+ * Copyright 2013 Patrick Kelchner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.cortexx.otp;
+
+/**
+ * The clock by which a {@link TimeBasedOneTimePassword} determines the current timeslot.
+ * Implementations must be thread-safe.
+ * <p>
+ * Supplying a time source makes behaviour at timeslot boundaries reproducible in tests and
+ * benchmarks, and lets hot paths read a cached time instead of the system clock, see
+ * {@link CoarseTimeSource}.
+ */
+public abstract class TimeSource {
+	/**
+	 * The system clock, read on every call.
+	 */
+	public static final TimeSource SYSTEM = new TimeSource() {
+		@Override
+		public long currentTimeMillis() {
+			return System.currentTimeMillis();
+		}
+
+		@Override
+		public String toString() {
+			return "TimeSource.SYSTEM";
+		}
+	};
+
+	/**
+	 * @return the current time in milliseconds since the epoch
+	 */
+	public abstract long currentTimeMillis();
+
+	/**
+	 * Returns the current timeslot, i.e. the current time divided by the length of a timeslot.
+	 * Subclasses may override this method to return a precomputed value.
+	 * 
+	 * @param slotMillis
+	 *        the length of a timeslot in milliseconds
+	 * @return the current timeslot
+	 */
+	public long currentTimeslot(final long slotMillis) {
+		return currentTimeMillis() / slotMillis;
+	}
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2013 Patrick Kelchner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.cortexx.otp;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Caches the passwords of one {@link HmacBasedOneTimePassword} by timeslot.
+ * This type is thread-safe.
+ * <p>
+ * The passwords are kept in a ring indexed by timeslot, so a cache with a capacity of at least
+ * the {@linkplain WindowPolicy#size() size of the window} holds a whole validation window of a
+ * {@link TimeBasedOneTimePassword}. Repeated validations within one timeslot then compute no
+ * HMAC at all, and moving on to the next timeslot computes exactly one: the entry that left the
+ * window is replaced by the one that entered it.
+ * <p>
+ * This class is designed to be kept per secret alongside its {@link HmacBasedOneTimePassword}.
+ * 
+ * @see TimeBasedOneTimePassword#createCache(HmacBasedOneTimePassword)
+ */
+public final class TimeslotCache {
+	/** Marks an empty entry. Passwords of this timeslot are never cached. */
+	private static final long EMPTY = Long.MIN_VALUE;
+
+	private final HmacBasedOneTimePassword otp;
+	private final Lock lock = new ReentrantLock();
+	private final long[] timeslots;
+	private final int[] passwords;
+
+	/**
+	 * @param otp
+	 *        the one-time password to cache the passwords of
+	 * @param capacity
+	 *        the number of timeslots to keep
+	 */
+	public TimeslotCache(final HmacBasedOneTimePassword otp, final int capacity) {
+		if (otp == null) {
+			throw new NullPointerException("otp");
+		}
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("'capacity' must be positive");
+		}
+
+		this.otp = otp;
+		this.timeslots = new long[capacity];
+		this.passwords = new int[capacity];
+
+		for (int i = 0; i < capacity; ++i) {
+			timeslots[i] = EMPTY;
+		}
+	}
+
+	/**
+	 * @return the one-time password whose passwords are cached
+	 */
+	public HmacBasedOneTimePassword getOneTimePassword() {
+		return otp;
+	}
+
+	/**
+	 * @return the number of timeslots kept
+	 */
+	public int getCapacity() {
+		return timeslots.length;
+	}
+
+	/**
+	 * Returns the password corresponding to the given timeslot, generating and caching it if it is
+	 * not cached yet.
+	 */
+	public int getPassword(final long timeslot) {
+		final int index = index(timeslot);
+
+		lock.lock();
+		try {
+			if (timeslots[index] == timeslot && timeslot != EMPTY) {
+				return passwords[index];
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		final int password = otp.generatePassword(timeslot);
+		put(index, timeslot, password);
+
+		return password;
+	}
+
+	/**
+	 * Generates and caches the password corresponding to the given timeslot unless it is cached
+	 * already.
+	 * 
+	 * @return <code>true</code> if a password was generated, <code>false</code> if it was cached
+	 */
+	public boolean prepare(final long timeslot) {
+		final int index = index(timeslot);
+
+		lock.lock();
+		try {
+			if (timeslots[index] == timeslot && timeslot != EMPTY) {
+				return false;
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		put(index, timeslot, otp.generatePassword(timeslot));
+		return true;
+	}
+
+	private void put(final int index, final long timeslot, final int password) {
+		lock.lock();
+		try {
+			timeslots[index] = timeslot;
+			passwords[index] = password;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private int index(final long timeslot) {
+		final int index = (int) (timeslot % timeslots.length);
+		return index < 0 ? index + timeslots.length : index;
+	}
+}
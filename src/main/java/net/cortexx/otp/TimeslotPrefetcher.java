@@ -0,0 +1,225 @@
+/*
+ * Copyright 2013 Patrick Kelchner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.cortexx.otp;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Prepares the passwords of registered {@link TimeslotCache}s shortly before each timeslot
+ * boundary of a {@link TimeBasedOneTimePassword}.
+ * This type is thread-safe.
+ * <p>
+ * Right after a boundary every validation window has moved by one timeslot. Without preparation
+ * the first validation of each account has to compute the password entering its window. With a
+ * prefetcher those passwords are computed on background threads a configurable lead time before
+ * the boundary, so validations after the boundary only look up cached passwords.
+ * <p>
+ * The number of background threads bounds the CPU spent on preparation. The counters
+ * {@link #getPreparedCount()}, {@link #getLateCount()} and {@link #getSkippedCount()} tell how
+ * much of the work was actually done ahead of time.
+ */
+public final class TimeslotPrefetcher {
+	private final TimeBasedOneTimePassword totp;
+	private final long leadMillis;
+	private final int parallelism;
+	private final List<TimeslotCache> caches = new CopyOnWriteArrayList<TimeslotCache>();
+	private final ScheduledExecutorService executor;
+	private final AtomicBoolean started = new AtomicBoolean();
+
+	private final AtomicLong prepared = new AtomicLong();
+	private final AtomicLong late = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+
+	/**
+	 * @param totp
+	 *        the parameters whose timeslots to prepare
+	 * @param leadTime
+	 *        how long before a timeslot boundary preparation starts
+	 * @param leadTimeUnit
+	 *        the unit of the lead time
+	 * @param parallelism
+	 *        the number of background threads preparing passwords, i.e. the number of cores this
+	 *        prefetcher may keep busy
+	 */
+	public TimeslotPrefetcher(final TimeBasedOneTimePassword totp,
+			final long leadTime, final TimeUnit leadTimeUnit, final int parallelism) {
+
+		if (totp == null) {
+			throw new NullPointerException("totp");
+		}
+		if (leadTimeUnit == null) {
+			throw new NullPointerException("leadTimeUnit");
+		}
+		if (leadTime < 0) {
+			throw new IllegalArgumentException("'leadTime' must not be negative");
+		}
+		if (parallelism <= 0) {
+			throw new IllegalArgumentException("'parallelism' must be positive");
+		}
+
+		this.totp = totp;
+		this.leadMillis = MILLISECONDS.convert(leadTime, leadTimeUnit);
+		this.parallelism = parallelism;
+		this.executor = Executors.newScheduledThreadPool(parallelism, new ThreadFactory() {
+			private final AtomicInteger threads = new AtomicInteger();
+
+			public Thread newThread(final Runnable runnable) {
+				final Thread thread = new Thread(runnable,
+						"otp-prefetch-" + threads.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Registers a cache whose passwords are to be prepared from now on.
+	 * 
+	 * @param cache
+	 *        a cache created by {@link TimeBasedOneTimePassword#createCache(HmacBasedOneTimePassword)}
+	 *        of the parameters of this prefetcher, or one at least as large
+	 */
+	public void register(final TimeslotCache cache) {
+		if (cache == null) {
+			throw new NullPointerException("cache");
+		}
+		if (cache.getCapacity() < totp.getWindowPolicy().size() + 1) {
+			throw new IllegalArgumentException("'cache' cannot hold the next timeslot in addition to the window");
+		}
+
+		caches.add(cache);
+	}
+
+	/**
+	 * Stops preparing the passwords of the given cache.
+	 */
+	public void unregister(final TimeslotCache cache) {
+		caches.remove(cache);
+	}
+
+	/**
+	 * Starts preparing each upcoming timeslot. Has no effect if already started.
+	 */
+	public void start() {
+		if (started.compareAndSet(false, true)) {
+			schedule(Long.MIN_VALUE);
+		}
+	}
+
+	/**
+	 * Stops preparing timeslots and terminates the background threads.
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * @return the number of passwords prepared before the boundary of their timeslot
+	 */
+	public long getPreparedCount() {
+		return prepared.get();
+	}
+
+	/**
+	 * @return the number of passwords prepared after the boundary of their timeslot had passed
+	 */
+	public long getLateCount() {
+		return late.get();
+	}
+
+	/**
+	 * @return the number of passwords that were already cached when they were to be prepared
+	 */
+	public long getSkippedCount() {
+		return skipped.get();
+	}
+
+	/**
+	 * Schedules the preparation of the next timeslot boundary after the given one.
+	 */
+	private void schedule(final long previousTimeslot) {
+		final long slotMillis = totp.getSlotMillis();
+		final long now = totp.getTimeSource().currentTimeMillis();
+		final long timeslot = Math.max(now / slotMillis + 1, previousTimeslot + 1);
+		final long delay = Math.max(0, timeslot * slotMillis - leadMillis - now);
+
+		try {
+			executor.schedule(new Runnable() {
+				public void run() {
+					prepare(timeslot);
+				}
+			}, delay, MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// shut down
+		}
+	}
+
+	/**
+	 * Prepares the password entering the window at the boundary of the given timeslot for every
+	 * registered cache, spread over all background threads. The last thread to finish schedules
+	 * the next boundary.
+	 */
+	private void prepare(final long timeslot) {
+		final TimeslotCache[] snapshot = caches.toArray(new TimeslotCache[0]);
+		final long entering = timeslot + totp.getWindowPolicy().getLookAhead();
+		final long boundary = timeslot * totp.getSlotMillis();
+
+		final int partitions = Math.max(1, Math.min(parallelism, snapshot.length));
+		final AtomicInteger remaining = new AtomicInteger(partitions);
+
+		for (int p = 0; p < partitions; ++p) {
+			final int from = (int) ((long) snapshot.length * p / partitions);
+			final int to = (int) ((long) snapshot.length * (p + 1) / partitions);
+
+			final Runnable partition = new Runnable() {
+				public void run() {
+					try {
+						for (int i = from; i < to; ++i) {
+							if (!snapshot[i].prepare(entering)) {
+								skipped.incrementAndGet();
+							} else if (totp.getTimeSource().currentTimeMillis() < boundary) {
+								prepared.incrementAndGet();
+							} else {
+								late.incrementAndGet();
+							}
+						}
+					} finally {
+						if (remaining.decrementAndGet() == 0) {
+							schedule(timeslot);
+						}
+					}
+				}
+			};
+
+			try {
+				executor.execute(partition);
+			} catch (RejectedExecutionException e) {
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2013 Patrick Kelchner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.cortexx.otp;
+
+/**
+ * The timeslots around the current one in which a {@link TimeBasedOneTimePassword} accepts a
+ * password, and the order in which they are tried.
+ * This type is immutable.
+ * <p>
+ * Validation stops at the first matching timeslot, so trying the likely timeslots first
+ * computes fewer HMACs on average without accepting any additional password. By default the
+ * current timeslot is tried first, then alternately the earlier and the later ones by increasing
+ * distance: passwords typed just before a timeslot ended are common, passwords from clocks
+ * running ahead rare.
+ */
+public final class WindowPolicy {
+	private final int lookBack;
+	private final int lookAhead;
+	private final int[] order;
+
+	/**
+	 * Creates a policy trying the current timeslot first, then alternately the earlier and the
+	 * later ones by increasing distance.
+	 * 
+	 * @param lookBack
+	 *        the number of timeslots before the current one that are also accepted
+	 * @param lookAhead
+	 *        the number of timeslots after the current one that are also accepted
+	 */
+	public WindowPolicy(final int lookBack, final int lookAhead) {
+		if (lookBack < 0) {
+			throw new IllegalArgumentException("'lookBack' must not be negative");
+		}
+		if (lookAhead < 0) {
+			throw new IllegalArgumentException("'lookAhead' must not be negative");
+		}
+
+		this.lookBack = lookBack;
+		this.lookAhead = lookAhead;
+		this.order = new int[lookBack + lookAhead + 1];
+
+		for (int distance = 1, i = 1; i < order.length; ++distance) {
+			if (distance <= lookBack) {
+				order[i++] = -distance;
+			}
+			if (distance <= lookAhead) {
+				order[i++] = distance;
+			}
+		}
+	}
+
+	private WindowPolicy(final int[] order) {
+		int min = 0;
+		int max = 0;
+
+		for (int i = 0; i < order.length; ++i) {
+			min = Math.min(min, order[i]);
+			max = Math.max(max, order[i]);
+		}
+
+		// a contiguous range without duplicates spans exactly as many offsets as it holds, which
+		// also bounds the array allocated below
+		if ((long) max - min + 1 != order.length) {
+			throw new IllegalArgumentException("'order' must contain 0 and be contiguous without duplicates, but spans "
+					+ min + " to " + max + " in " + order.length + " offsets");
+		}
+
+		final boolean[] seen = new boolean[max - min + 1];
+		for (int i = 0; i < order.length; ++i) {
+			if (seen[order[i] - min]) {
+				throw new IllegalArgumentException("'order' contains " + order[i] + " more than once");
+			}
+			seen[order[i] - min] = true;
+		}
+		for (int i = 0; i < seen.length; ++i) {
+			if (!seen[i]) {
+				throw new IllegalArgumentException("'order' must contain 0 and be contiguous, but lacks " + (i + min));
+			}
+		}
+
+		this.lookBack = -min;
+		this.lookAhead = max;
+		this.order = order;
+	}
+
+	/**
+	 * Creates a policy accepting the same number of timeslots before and after the current one.
+	 * 
+	 * @param variance
+	 *        the number of timeslots before and after the current one that are also accepted
+	 * @see #WindowPolicy(int, int)
+	 */
+	public static WindowPolicy symmetric(final int variance) {
+		return new WindowPolicy(variance, variance);
+	}
+
+	/**
+	 * Creates a policy trying the timeslots at the given offsets from the current one in the given
+	 * order.
+	 * 
+	 * @param order
+	 *        the offsets, which must be distinct, contiguous and include 0
+	 */
+	public static WindowPolicy inOrder(final int... order) {
+		if (order == null) {
+			throw new NullPointerException("order");
+		}
+		if (order.length == 0) {
+			throw new IllegalArgumentException("'order' must contain at least one offset");
+		}
+
+		return new WindowPolicy(order.clone());
+	}
+
+	/**
+	 * @return the number of timeslots before the current one that are also accepted
+	 */
+	public int getLookBack() {
+		return lookBack;
+	}
+
+	/**
+	 * @return the number of timeslots after the current one that are also accepted
+	 */
+	public int getLookAhead() {
+		return lookAhead;
+	}
+
+	/**
+	 * @return the number of timeslots accepted
+	 */
+	public int size() {
+		return order.length;
+	}
+
+	/**
+	 * @return the offsets from the current timeslot in the order they are tried
+	 */
+	public int[] getOrder() {
+		return order.clone();
+	}
+
+	/**
+	 * @return the <code>i</code>-th offset tried
+	 */
+	public int getOffset(final int i) {
+		return order[i];
+	}
+
+	@Override
+	public String toString() {
+		return "WindowPolicy[-" + lookBack + ", +" + lookAhead + "]";
+	}
+}